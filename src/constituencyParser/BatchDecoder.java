@@ -0,0 +1,219 @@
+package constituencyParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import constituencyParser.features.FeatureParameters;
+
+/**
+ * Decodes many sentences in parallel.  Each worker thread has its own decoder from a DecoderFactory,
+ * and sentences are handed out longest first so the slow ones don't end up at the end of the batch.
+ * Results are returned in the same order as the input sentences.
+ */
+public class BatchDecoder implements AutoCloseable {
+	/**
+	 * The parse of one sentence and the score the decoder gave it
+	 */
+	public static class Result {
+		List<Span> spans;
+		double score;
+
+		public Result(List<Span> spans, double score) {
+			this.spans = spans;
+			this.score = score;
+		}
+
+		public List<Span> getSpans() {
+			return spans;
+		}
+
+		public double getScore() {
+			return score;
+		}
+	}
+
+	Decoder[] decoders;
+	ExecutorService executorService;
+	boolean ownsExecutor; // if true, close shuts down executorService
+	boolean helpWhenIdle = false;
+
+	public BatchDecoder(DecoderFactory factory, int threads) {
+		this(factory, DecoderExecutors.newFixedThreadPool(threads), threads);
+		ownsExecutor = true;
+	}
+	
+	/**
+	 * Run the workers on executor, which may be shared and is not shut down by close.
+	 * The decoders can submit their own tasks to the same executor, since RandomizedGreedyDecoder runs any task the executor hasn't started itself.
+	 * @param threads number of workers, each with its own decoder
+	 */
+	public BatchDecoder(DecoderFactory factory, ExecutorService executor, int threads) {
+		decoders = new Decoder[threads];
+		for(int i = 0; i < threads; i++) {
+			decoders[i] = factory.makeDecoder();
+		}
+		executorService = executor;
+	}
+
+	public void setSecondOrder(boolean secondOrder) {
+		for(Decoder decoder : decoders)
+			decoder.setSecondOrder(secondOrder);
+	}
+	
+	/**
+	 * When there are no sentences left to start, let idle threads run random restarts for the longest sentence still being decoded
+	 * instead of waiting for it.  Only has an effect when the decoders are RandomizedGreedyDecoders, which should then use one thread each.
+	 * @param helpWhenIdle
+	 */
+	public void setHelpWhenIdle(boolean helpWhenIdle) {
+		this.helpWhenIdle = helpWhenIdle;
+	}
+
+	/**
+	 * Parse all of sentences using params
+	 * @param sentences
+	 * @param params
+	 * @return a result for each sentence, in the same order as sentences
+	 */
+	public List<Result> decodeBatch(final List<List<Word>> sentences, final FeatureParameters params) {
+		final Result[] results = new Result[sentences.size()];
+
+		// longest sentences first
+		final List<Integer> order = new ArrayList<>();
+		for(int i = 0; i < sentences.size(); i++)
+			order.add(i);
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer arg0, Integer arg1) {
+				return sentences.get(arg1).size() - sentences.get(arg0).size();
+			}
+		});
+
+		final AtomicInteger next = new AtomicInteger(0);
+		List<Future<Void>> futures = new ArrayList<>();
+		for(final Decoder decoder : decoders) {
+			futures.add(executorService.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int i;
+					while((i = next.getAndIncrement()) < order.size()) {
+						int index = order.get(i);
+						List<Span> spans = decoder.decode(sentences.get(index), params);
+						results[index] = new Result(spans, decoder.getLastScore());
+					}
+					if(helpWhenIdle) {
+						while(helpLongest()) {
+							// keep going until no sentence has restarts left to start
+						}
+					}
+					return null;
+				}
+			}));
+		}
+
+		for(Future<Void> future : futures) {
+			try {
+				future.get();
+			}
+			catch(ExecutionException e) {
+				throw new RuntimeException("Exception in decoder worker thread", e.getCause());
+			}
+			catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Run restarts for the longest sentence being decoded that still has restarts left
+	 * @return false if there was no sentence to help with
+	 */
+	private boolean helpLongest() {
+		RandomizedGreedyDecoder longest = null;
+		int longestLength = 0;
+		for(Decoder decoder : decoders) {
+			if(decoder instanceof RandomizedGreedyDecoder) {
+				RandomizedGreedyDecoder randomizedGreedy = (RandomizedGreedyDecoder)decoder;
+				int length = randomizedGreedy.getHelpableLength();
+				if(length > longestLength) {
+					longestLength = length;
+					longest = randomizedGreedy;
+				}
+			}
+		}
+		if(longest == null)
+			return false;
+		longest.help(); // if it has finished since we looked, this does nothing and we look again
+		return true;
+	}
+	
+	/**
+	 * Parse a stream of sentences.  Sentences are read bucketSize at a time and each bucket is decoded with decodeBatch.
+	 * @param sentences
+	 * @param params
+	 * @param bucketSize number of sentences read ahead and decoded together
+	 * @return results in the same order as sentences
+	 */
+	public Iterator<Result> decodeStream(final Iterator<List<Word>> sentences, final FeatureParameters params, final int bucketSize) {
+		return new Iterator<Result>() {
+			Iterator<Result> bucket = Collections.<Result>emptyList().iterator();
+
+			@Override
+			public boolean hasNext() {
+				if(bucket.hasNext())
+					return true;
+
+				List<List<Word>> nextSentences = new ArrayList<>();
+				while(nextSentences.size() < bucketSize && sentences.hasNext())
+					nextSentences.add(sentences.next());
+				if(nextSentences.size() == 0)
+					return false;
+
+				bucket = decodeBatch(nextSentences, params).iterator();
+				return true;
+			}
+
+			@Override
+			public Result next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				return bucket.next();
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Stops the worker threads and closes the decoders.  The BatchDecoder cannot be used after this.
+	 */
+	@Override
+	public void close() {
+		if(ownsExecutor)
+			executorService.shutdown();
+		for(Decoder decoder : decoders)
+			decoder.close();
+	}
+	
+	/**
+	 * Same as close
+	 */
+	public void shutdown() {
+		close();
+	}
+}
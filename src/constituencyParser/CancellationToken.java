@@ -0,0 +1,16 @@
+package constituencyParser;
+
+/**
+ * Used to ask a decode that is running on another thread to stop early and return the best parse found so far.
+ */
+public class CancellationToken {
+	private volatile boolean cancelled = false;
+	
+	public void cancel() {
+		cancelled = true;
+	}
+	
+	public boolean isCancelled() {
+		return cancelled;
+	}
+}
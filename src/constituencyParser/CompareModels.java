@@ -37,30 +37,44 @@ public class CompareModels {
 		test(dataDir, secondOrder, greedyIterations, 1, numberOfThreads);
 	}
 
-	public static void test(String dataFolder, boolean secondOrder, int randomizedGreedyIterations, double fractionOfData, int threads) throws IOException, ClassNotFoundException {
+	public static void test(String dataFolder, boolean secondOrder, final int randomizedGreedyIterations, double fractionOfData, int threads) throws IOException, ClassNotFoundException {
 		SaveObject savedModel = SaveObject.loadSaveObject("model_feb_order_1/modelIteration2");
 		SaveObject savedModel2 = SaveObject.loadSaveObject("model_feb_order_2/modelIteration2");
 
-		WordEnumeration words = savedModel.getWords();
-		LabelEnumeration labels = savedModel.getLabels();
-		RuleEnumeration rules = savedModel.getRules();
+		final WordEnumeration words = savedModel.getWords();
+		final LabelEnumeration labels = savedModel.getLabels();
+		final RuleEnumeration rules = savedModel.getRules();
 		FeatureParameters parameters = savedModel.getParameters();
 		
 		FeatureParameters parameters2 = savedModel2.getParameters();
 		
-		RandomizedGreedyDecoder randGreedyDecoder = new RandomizedGreedyDecoder(words, labels, rules, threads);
+		BatchDecoder randGreedyDecoder = new BatchDecoder(new DecoderFactory() {
+			@Override
+			public Decoder makeDecoder() {
+				RandomizedGreedyDecoder decoder = new RandomizedGreedyDecoder(words, labels, rules, 1);
+				decoder.setNumberSampleIterations(randomizedGreedyIterations);
+				return decoder;
+			}
+		}, threads);
 		
 		List<SpannedWords> gold = PennTreebankReader.loadFromFiles(dataFolder, 23, 24, words, labels, rules, false);
 		int number = (int)(gold.size() * fractionOfData);
 		gold = gold.subList(0, number);
 
-		randGreedyDecoder.setNumberSampleIterations(randomizedGreedyIterations);
+		randGreedyDecoder.setSecondOrder(secondOrder);
+		randGreedyDecoder.setHelpWhenIdle(true);
 		
-		for(SpannedWords example : gold) {
-			randGreedyDecoder.setSecondOrder(secondOrder);
-
-			List<Span> result = randGreedyDecoder.decode(example.getWords(), parameters);
-			List<Span> result2 = randGreedyDecoder.decode(example.getWords(), parameters2);
+		List<List<Word>> sentences = new ArrayList<>();
+		for(SpannedWords example : gold)
+			sentences.add(example.getWords());
+		List<BatchDecoder.Result> results = randGreedyDecoder.decodeBatch(sentences, parameters);
+		List<BatchDecoder.Result> results2 = randGreedyDecoder.decodeBatch(sentences, parameters2);
+		randGreedyDecoder.close();
+		
+		for(int i = 0; i < gold.size(); i++) {
+			SpannedWords example = gold.get(i);
+			List<Span> result = results.get(i).getSpans();
+			List<Span> result2 = results2.get(i).getSpans();
 
 			int commonWith1 = 0;
 			for(Span span : result) {
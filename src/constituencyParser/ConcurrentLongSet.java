@@ -0,0 +1,58 @@
+package constituencyParser;
+
+import gnu.trove.set.hash.TLongHashSet;
+
+/**
+ * A set of longs that can be used from several threads.  The values are split between stripes by their high bits,
+ * and each stripe is an open addressing TLongHashSet with its own lock, so threads rarely wait on each other.
+ * Meant for values that are already well mixed hashes, like SpanUtilities.treeHash.
+ */
+public class ConcurrentLongSet {
+	private static final int STRIPE_BITS = 4;
+	
+	private final TLongHashSet[] stripes = new TLongHashSet[1 << STRIPE_BITS];
+	
+	public ConcurrentLongSet() {
+		for(int i = 0; i < stripes.length; i++)
+			stripes[i] = new TLongHashSet();
+	}
+	
+	private TLongHashSet getStripe(long value) {
+		return stripes[(int)(value >>> (64 - STRIPE_BITS))];
+	}
+	
+	/**
+	 * @return true if value was not already in the set
+	 */
+	public boolean add(long value) {
+		TLongHashSet stripe = getStripe(value);
+		synchronized(stripe) {
+			return stripe.add(value);
+		}
+	}
+	
+	public boolean contains(long value) {
+		TLongHashSet stripe = getStripe(value);
+		synchronized(stripe) {
+			return stripe.contains(value);
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for(TLongHashSet stripe : stripes) {
+			synchronized(stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+	
+	public void clear() {
+		for(TLongHashSet stripe : stripes) {
+			synchronized(stripe) {
+				stripe.clear();
+			}
+		}
+	}
+}
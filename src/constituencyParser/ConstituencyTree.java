@@ -0,0 +1,514 @@
+package constituencyParser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import constituencyParser.GreedyChange.ParentedSpans;
+import constituencyParser.Rule.Type;
+
+/**
+ * A parse tree that RandomizedGreedyDecoder changes in place while doing greedy updates.
+ * Each node is a binary or terminal span, with the unary above it (if any) merged into the node.
+ * Every change is recorded in an undo log, so a candidate change can be made, scored, and taken back with undo without copying the tree.
+ */
+public class ConstituencyTree {
+	static class Node {
+		Node parent;
+		int unaryLabel = -1; // -1 if there is not a unary on this
+		int label;
+
+		boolean terminal;
+
+		// for non-terminals
+		Node left;
+		Node right;
+
+		int start;
+		int end;
+		
+		// for scorers to keep the score of the node in the committed tree
+		double cachedScore;
+		int scoreStamp;
+		
+		// spans for this node from the last getSpans on the committed tree, null if the node or anything below it changed since then
+		// the spans are never changed once made, so unchanged subtrees share them between the lists returned by getSpans
+		Span span;
+		Span unarySpan;
+		int changedStamp; // equal to the tree's spansStamp if the node or anything below it has uncommitted changes
+		
+		long hash; // xor of the spanHash of the spans for this node in the committed tree
+
+		/**
+		 * The label seen by the parent, which is the unary label if there is one
+		 */
+		int getOuterLabel() {
+			return unaryLabel != -1 ? unaryLabel : label;
+		}
+
+		public String toString() {
+			if(terminal) {
+				return "{" + start + ":" + label + "}";
+			}
+			else {
+				return "{" + left.toString() + right.toString() + "}";
+			}
+		}
+	}
+
+	/**
+	 * The fields of a node before it was changed, used to undo the change
+	 */
+	private static class SavedNode {
+		Node node;
+		Node parent;
+		Node left;
+		Node right;
+		Node root; // the root of the tree when the node was saved
+		int unaryLabel;
+		int label;
+		int start;
+		int end;
+	}
+
+	private RuleEnumeration rules; // null if getSpans makes its own rules
+	private Node root;
+	private Node[] terminals;
+	private Node[] nodesBySpan; // indexed by TriangularChart.cellIndex, reflects the tree as of the last commit
+
+	// saved nodes are reused so making and undoing changes doesn't allocate once the log has grown
+	private List<SavedNode> undoLog = new ArrayList<>();
+	private int undoLogSize = 0;
+	
+	private int spansStamp = 0;
+	
+	private long hash = 0; // treeHash of the committed tree
+
+	/**
+	 * Converts list of Span representation to a tree.  Used before doing greedy updates.
+	 * @param spans
+	 */
+	public ConstituencyTree(List<Span> spans) {
+		this(spans, SpanUtilities.getParents(spans));
+	}
+	
+	/**
+	 * @param spans
+	 * @param parents the parents of spans, as from SpanUtilities.getParents
+	 */
+	public ConstituencyTree(List<Span> spans, int[] parents) {
+		this(spans, parents, null);
+	}
+	
+	/**
+	 * @param spans
+	 * @param parents the parents of spans, as from SpanUtilities.getParents
+	 * @param rules if not null, the spans made by getSpans use the rules from here instead of new ones when the rules exist
+	 */
+	public ConstituencyTree(List<Span> spans, int[] parents, RuleEnumeration rules) {
+		this.rules = rules;
+		int numberWords = 0;
+		Node[] nodes = new Node[spans.size()];
+		for(int i = 0; i < spans.size(); i++) {
+			Rule rule = spans.get(i).getRule();
+			if(rule.getType() == Type.UNARY) // we are going to merge the unaries with the node below them
+				continue;
+			else {
+				Node node = new Node();
+				if(rule.getType() == Type.TERMINAL) {
+					node.terminal = true;
+					node.start = spans.get(i).getStart();
+					node.end = node.start + 1;
+					numberWords = Math.max(numberWords, node.end);
+				}
+				node.label = rule.getLabel();
+				nodes[i] = node;
+				int pi = parents[i];
+				if(pi != -1) {
+					Span parent = spans.get(pi);
+					if(parent.getRule().getType() == Type.UNARY) {
+						nodes[pi] = node;
+						node.unaryLabel = parent.getRule().getLabel();
+					}
+				}
+			}
+		}
+		terminals = new Node[numberWords];
+		for(int i = 0; i < spans.size(); i++) {
+			if(nodes[i] != null && nodes[i].terminal)
+				terminals[nodes[i].start] = nodes[i];
+
+			int pi = parents[i];
+			if(pi != -1) {
+				if(spans.get(pi).getRule().getType() == Type.UNARY) {
+					continue; // we will handle this one when we get to the unary
+				}
+
+				nodes[i].parent = nodes[pi];
+
+				if(spans.get(i).getStart() < spans.get(pi).getSplit())
+					nodes[pi].left = nodes[i];
+				else
+					nodes[pi].right = nodes[i];
+			}
+			else {
+				root = nodes[i];
+			}
+		}
+
+		updateSpanLocations(root);
+		
+		nodesBySpan = new Node[TriangularChart.numberOfCells(numberWords)];
+		for(Node node : nodes) {
+			if(node != null)
+				nodesBySpan[TriangularChart.cellIndex(numberWords, node.start, node.end)] = node;
+		}
+		for(Node node : getNodes())
+			rehash(node);
+	}
+
+	private static void updateSpanLocations(Node node) {
+		if(!node.terminal) {
+			updateSpanLocations(node.left);
+			updateSpanLocations(node.right);
+			node.start = node.left.start;
+			node.end = node.right.end;
+		}
+	}
+
+	Node getRoot() {
+		return root;
+	}
+
+	Node getTerminal(int position) {
+		return terminals[position];
+	}
+
+	/**
+	 * The node going from start to end, or null if there isn't one.  Only valid when there are no changes since the last commit.
+	 * There is at most one node for each start and end since unaries are part of the node below them.
+	 */
+	Node getNode(int start, int end) {
+		return nodesBySpan[TriangularChart.cellIndex(terminals.length, start, end)];
+	}
+	
+	/**
+	 * If the tree has a span (terminal, unary, or binary) from start to end.  Only valid when there are no changes since the last commit.
+	 */
+	public boolean hasSpan(int start, int end) {
+		return getNode(start, end) != null;
+	}
+
+	/**
+	 * All nodes in the tree, in preorder
+	 */
+	List<Node> getNodes() {
+		List<Node> result = new ArrayList<>();
+		getNodes(root, result);
+		return result;
+	}
+	
+	private static void getNodes(Node node, List<Node> result) {
+		result.add(node);
+		if(!node.terminal) {
+			getNodes(node.left, result);
+			getNodes(node.right, result);
+		}
+	}
+
+	/**
+	 * The nodes in the tree that start where node ends or end where node starts, in preorder
+	 */
+	List<Node> getAdjacent(Node node) {
+		List<Node> result = new ArrayList<>();
+		getAdjacent(root, node, result);
+		return result;
+	}
+
+	private static void getAdjacent(Node current, Node node, List<Node> result) {
+		if(current.start == node.end || current.end == node.start)
+			result.add(current);
+
+		if(!current.terminal) {
+			getAdjacent(current.left, node, result);
+			getAdjacent(current.right, node, result);
+		}
+	}
+
+	/**
+	 * Position in the undo log to pass to undo
+	 */
+	public int mark() {
+		return undoLogSize;
+	}
+
+	/**
+	 * Take back all changes made since mark was called
+	 * @param mark
+	 */
+	public void undo(int mark) {
+		while(undoLogSize > mark) {
+			SavedNode saved = undoLog.get(--undoLogSize);
+			Node node = saved.node;
+			node.parent = saved.parent;
+			node.left = saved.left;
+			node.right = saved.right;
+			node.unaryLabel = saved.unaryLabel;
+			node.label = saved.label;
+			node.start = saved.start;
+			node.end = saved.end;
+			root = saved.root; // the earliest entry restores the root as it was at mark
+			saved.node = saved.parent = saved.left = saved.right = saved.root = null;
+		}
+	}
+
+	/**
+	 * Number of entries in the undo log since the last commit.  Each entry is a node that was changed.
+	 */
+	int getNumberChanged() {
+		return undoLogSize;
+	}
+	
+	/**
+	 * A node changed since the last commit.  A node can be listed more than once.
+	 * Nodes whose parent rule changed because their child's label changed are not listed, only the child is.
+	 */
+	Node getChangedNode(int index) {
+		return undoLog.get(index).node;
+	}
+
+	/**
+	 * Keep all changes made so far, clearing the undo log
+	 */
+	public void commit() {
+		int numberWords = terminals.length;
+		// the log has where each changed node was at the last commit, so move those nodes in the span index
+		for(int i = 0; i < undoLogSize; i++) {
+			SavedNode saved = undoLog.get(i);
+			int cell = TriangularChart.cellIndex(numberWords, saved.start, saved.end);
+			if(nodesBySpan[cell] == saved.node)
+				nodesBySpan[cell] = null;
+		}
+		for(int i = 0; i < undoLogSize; i++) {
+			SavedNode saved = undoLog.get(i);
+			Node node = saved.node;
+			nodesBySpan[TriangularChart.cellIndex(numberWords, node.start, node.end)] = node;
+			// the parent's binary span has the node's label and position, so it can change without the parent being in the log
+			rehash(node);
+			if(node.parent != null)
+				rehash(node.parent);
+			// a node's spans depend on its children, so the cached spans are stale from the changed node up to the root
+			// if a node's spans are already cleared, so are those above it, since anything that moved under it was also changed
+			for(; node != null && node.span != null; node = node.parent) {
+				node.span = null;
+				node.unarySpan = null;
+			}
+			saved.node = saved.parent = saved.left = saved.right = saved.root = null;
+		}
+		undoLogSize = 0;
+	}
+
+	/**
+	 * SpanUtilities.treeHash of the spans of the tree as of the last commit.  Commit updates it from the nodes that changed, without going through the whole tree.
+	 */
+	public long getHash() {
+		return hash;
+	}
+	
+	/**
+	 * Swap the old hash of node for one from its current spans.  Doing it again for the same node changes nothing.
+	 */
+	private void rehash(Node node) {
+		hash ^= node.hash;
+		if(node.terminal)
+			node.hash = SpanUtilities.spanHash(Type.TERMINAL, node.start, node.end, 0, node.label, 0, 0);
+		else
+			node.hash = SpanUtilities.spanHash(Type.BINARY, node.start, node.end, node.left.end, node.label, node.left.getOuterLabel(), node.right.getOuterLabel());
+		if(node.unaryLabel != -1)
+			node.hash ^= SpanUtilities.spanHash(Type.UNARY, node.start, node.end, 0, node.unaryLabel, node.label, 0);
+		hash ^= node.hash;
+	}
+
+	private void save(Node node) {
+		if(undoLogSize == undoLog.size())
+			undoLog.add(new SavedNode());
+		SavedNode saved = undoLog.get(undoLogSize++);
+		saved.node = node;
+		saved.parent = node.parent;
+		saved.left = node.left;
+		saved.right = node.right;
+		saved.root = root;
+		saved.unaryLabel = node.unaryLabel;
+		saved.label = node.label;
+		saved.start = node.start;
+		saved.end = node.end;
+	}
+
+	/**
+	 * @param unaryLabel -1 for no unary
+	 */
+	void setLabels(Node node, int unaryLabel, int label) {
+		save(node);
+		node.unaryLabel = unaryLabel;
+		node.label = label;
+	}
+
+	/**
+	 * Take node out of the tree.  Its parent comes out with it and its sibling takes the parent's place.
+	 * The parent stays connected to node so attach can put it back somewhere else.
+	 * @param node must not be the root
+	 */
+	void detach(Node node) {
+		Node parent = node.parent;
+		Node sibling = parent.left == node ? parent.right : parent.left;
+		Node grandparent = parent.parent;
+		save(sibling);
+		save(parent);
+		if(grandparent == null) {
+			sibling.parent = null;
+			root = sibling;
+		}
+		else {
+			save(grandparent);
+			if(grandparent.left == parent)
+				grandparent.left = sibling;
+			else
+				grandparent.right = sibling;
+			sibling.parent = grandparent;
+			updateAncestorLocations(grandparent);
+		}
+		parent.parent = null;
+	}
+
+	/**
+	 * Put node back in the tree after detach as the sibling of target.  The parent that came out with node becomes the parent of both, with no unary.
+	 * @param node
+	 * @param target must start where node ends or end where node starts
+	 */
+	void attach(Node node, Node target) {
+		Node parent = node.parent;
+		Node targetParent = target.parent;
+		save(parent);
+		save(target);
+		if(targetParent == null) {
+			root = parent;
+		}
+		else {
+			save(targetParent);
+			if(targetParent.left == target)
+				targetParent.left = parent;
+			else
+				targetParent.right = parent;
+		}
+		parent.parent = targetParent;
+
+		if(node.start == target.end) {
+			parent.left = target;
+			parent.right = node;
+		}
+		else if(node.end == target.start) {
+			parent.left = node;
+			parent.right = target;
+		}
+		else {
+			throw new RuntimeException("Node is not adjacent to target");
+		}
+		target.parent = parent;
+		parent.unaryLabel = -1;
+		updateAncestorLocations(parent);
+	}
+
+	/**
+	 * Update the start and end of node and the nodes above it after its children changed
+	 */
+	private void updateAncestorLocations(Node node) {
+		for(; node != null; node = node.parent) {
+			int start = node.left.start, end = node.right.end;
+			if(start != node.start || end != node.end) {
+				save(node);
+				node.start = start;
+				node.end = end;
+			}
+		}
+	}
+
+	/**
+	 * Converts the tree back to a list of spans, parents before their children, with children connected.
+	 * Only spans for nodes that changed and the nodes above them are new; the rest are shared with earlier results, so the spans must not be modified.
+	 */
+	public ParentedSpans getSpans() {
+		// mark the nodes that have uncommitted changes so their cached spans aren't used
+		spansStamp++;
+		for(int i = 0; i < undoLogSize; i++) {
+			for(Node node = undoLog.get(i).node; node != null && node.changedStamp != spansStamp; node = node.parent)
+				node.changedStamp = spansStamp;
+		}
+		
+		List<Span> spans = new ArrayList<>();
+		List<Integer> parents = new ArrayList<>();
+		getSpans(root, spans, parents, -1);
+		ParentedSpans result = new ParentedSpans();
+		result.parents = new int[parents.size()];
+		for(int i = 0; i < parents.size(); i++)
+			result.parents[i] = parents.get(i);
+		result.spans = spans;
+		return result;
+	}
+
+	/**
+	 * @return the top span for node
+	 */
+	private Span getSpans(Node node, List<Span> result, List<Integer> parents, int parentIndex) {
+		boolean useCached = node.span != null && node.changedStamp != spansStamp;
+		boolean cache = undoLogSize == 0; // only keep spans made from the committed tree
+		
+		Span unary = null;
+		if(node.unaryLabel != -1) {
+			parents.add(parentIndex);
+			parentIndex = result.size(); // set the unary index to the parent index for the terminal and binary rules below
+			unary = useCached ? node.unarySpan : new Span(node.start, node.end, getUnaryRule(node.unaryLabel, node.label));
+			result.add(unary);
+		}
+
+		Span span;
+		if(node.terminal) {
+			span = useCached ? node.span : new Span(node.start, node.label);
+			result.add(span);
+			parents.add(parentIndex);
+		}
+		else {
+			int index = result.size();
+			span = useCached ? node.span : new Span(node.start, node.end, node.left.end, getBinaryRule(node.label, node.left.getOuterLabel(), node.right.getOuterLabel()));
+			result.add(span);
+			parents.add(parentIndex);
+
+			Span left = getSpans(node.left, result, parents, index);
+			Span right = getSpans(node.right, result, parents, index);
+			if(!useCached) {
+				span.setLeft(left);
+				span.setRight(right);
+			}
+		}
+		if(unary != null && !useCached)
+			unary.setLeft(span);
+		
+		if(cache && !useCached) {
+			node.span = span;
+			node.unarySpan = unary;
+		}
+		return unary != null ? unary : span;
+	}
+
+	private Rule getBinaryRule(int label, int left, int right) {
+		int id = rules == null ? -1 : rules.getBinaryId(label, left, right);
+		return id != -1 ? rules.getBinaryRule(id) : new Rule(label, left, right); // candidates can have rules that don't exist
+	}
+	
+	private Rule getUnaryRule(int label, int child) {
+		int id = rules == null ? -1 : rules.getUnaryId(label, child);
+		return id != -1 ? rules.getUnaryRule(id) : new Rule(label, child);
+	}
+
+	public String toString() {
+		return root.toString();
+	}
+}
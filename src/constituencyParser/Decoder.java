@@ -4,7 +4,7 @@ import java.util.List;
 
 import constituencyParser.features.FeatureParameters;
 
-public interface Decoder {
+public interface Decoder extends AutoCloseable {
 	/**
 	 * Parse the sentence words using params
 	 * @param words
@@ -17,4 +17,10 @@ public interface Decoder {
 	public void setCostAugmenting(boolean costAugmenting, SpannedWords gold);
 	public void setSecondOrder(boolean secondOrder);
 	public double getLastScore();
+	
+	/**
+	 * Release any threads the decoder owns.  The decoder can't be used after this.
+	 */
+	@Override
+	public void close();
 }
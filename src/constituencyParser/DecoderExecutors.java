@@ -0,0 +1,47 @@
+package constituencyParser;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors for running decoder tasks, which can be shared by many decoders.
+ * Threads are named so they are easy to find in a profiler or thread dump, and are daemon threads so a pool that is not shut down doesn't keep the JVM alive.
+ */
+public class DecoderExecutors {
+	private static final AtomicInteger poolNumber = new AtomicInteger(0);
+	
+	private static ThreadFactory makeThreadFactory() {
+		final String prefix = "decoder-" + poolNumber.incrementAndGet() + "-";
+		return new ThreadFactory() {
+			AtomicInteger threadNumber = new AtomicInteger(0);
+			
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, prefix + threadNumber.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+	
+	public static ExecutorService newFixedThreadPool(int threads) {
+		return Executors.newFixedThreadPool(threads, makeThreadFactory());
+	}
+	
+	/**
+	 * An executor that starts a new virtual thread for each task if the JVM has virtual threads (Java 21 and later).
+	 * Otherwise a cached pool of ordinary threads, which also starts a thread whenever no idle one is available.
+	 */
+	public static ExecutorService newVirtualThreadPerTaskExecutor() {
+		try {
+			Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService)method.invoke(null);
+		}
+		catch(ReflectiveOperationException | UnsupportedOperationException e) {
+			return Executors.newCachedThreadPool(makeThreadFactory());
+		}
+	}
+}
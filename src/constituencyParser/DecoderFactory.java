@@ -0,0 +1,8 @@
+package constituencyParser;
+
+/**
+ * Makes new decoder instances.  Used when each worker thread needs its own decoder, since decoders keep per sentence state in fields.
+ */
+public interface DecoderFactory {
+	public Decoder makeDecoder();
+}
@@ -30,6 +30,10 @@ public class DiscriminativeCKYDecoder implements Decoder {
 	int[][] goldLabels;
 	int[][] goldUnaryLabels;
 	
+	boolean sharedFeatures = false; // if true, the score arrays of firstOrderFeatures are filled by someone else before decode is called
+	KBestChart kBestChart; // only used when doing k-best decoding, records all the edges explored
+	List<Double> lastKBestScores;
+	
 	public DiscriminativeCKYDecoder(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules) {
 		this.wordEnum = words;
 		this.labels = labels;
@@ -38,11 +42,58 @@ public class DiscriminativeCKYDecoder implements Decoder {
 		firstOrderFeatures = new FirstOrderFeatureHolder(words, labels, rules);
 	}
 	
+	/**
+	 * Use score arrays that are already filled for the sentence being decoded, used by RandomizedGreedyDecoder
+	 * @param features
+	 */
+	DiscriminativeCKYDecoder(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, FirstOrderFeatureHolder features) {
+		this.wordEnum = words;
+		this.labels = labels;
+		this.rules = rules;
+		
+		firstOrderFeatures = features;
+		sharedFeatures = true;
+	}
+	
 	double lastScore = 0;
 	
+	@Override
+	public void close() {
+		// no threads to release
+	}
+	
+	/**
+	 * Get the k best parse trees, best first.  Can return fewer than k if there aren't that many.
+	 * @param words
+	 * @param params
+	 * @param k
+	 * @return
+	 */
+	public List<List<Span>> decodeKBest(List<Word> words, FeatureParameters params, int k) {
+		kBestChart = new KBestChart(words.size(), labels.getNumberOfLabels());
+		decode(words, params);
+		
+		for(Integer topLabel : labels.getTopLevelLabelIds())
+			kBestChart.addTopLevel(topLabel);
+		
+		lastKBestScores = new ArrayList<>();
+		List<List<Span>> result = kBestChart.getKBest(k, lastKBestScores);
+		kBestChart = null;
+		return result;
+	}
+	
+	/**
+	 * The scores of the trees returned by the last call to decodeKBest
+	 * @return
+	 */
+	public List<Double> getLastKBestScores() {
+		return lastKBestScores;
+	}
+	
 	public List<Span> decode(List<Word> words, FeatureParameters params) {
 		//System.out.println("Check 1");
-		firstOrderFeatures.fillScoreArrays(words, params);
+		if(!sharedFeatures)
+			firstOrderFeatures.fillScoreArrays(words, params);
 		//System.out.println("Check 2");
 		
 		int wordsSize = words.size();
@@ -66,6 +117,8 @@ public class DiscriminativeCKYDecoder implements Decoder {
 					score += 1;
 				scores[i][i+1][label] = score;
 				spans[i][i+1][label] = span;
+				if(kBestChart != null)
+					kBestChart.addTerminal(i, label, score);
 			}
 			
 			doUnary(words, i, i+1, Double.POSITIVE_INFINITY, params);
@@ -110,6 +163,9 @@ public class DiscriminativeCKYDecoder implements Decoder {
 						if(costAugmenting && label != goldLabels[start][end])
 							spanScore += 1;
 						
+						if(kBestChart != null)
+							kBestChart.addBinary(start, end, splitLocation, rule, spanScore);
+						
 						double fullScore = spanScore + leftChildScore + rightChildScore;
 						if(fullScore > scores[start][end][label]) {
 							scores[start][end][label] = fullScore;
@@ -167,6 +223,13 @@ public class DiscriminativeCKYDecoder implements Decoder {
 		Arrays.fill(unaryScores, Double.NEGATIVE_INFINITY);
 		Span[] unarySpans = new Span[numLabels];
 		
+		if(kBestChart != null) {
+			for(int i = 0; i < numLabels; i++) {
+				if(scores[start][end][i] != Double.NEGATIVE_INFINITY)
+					kBestChart.addNoUnary(start, end, i);
+			}
+		}
+		
 		for(int i = 0; i < numUnaryRules; i++) {
 			Rule rule = rules.getUnaryRule(i);
 			int label = rule.getLabel();
@@ -181,6 +244,9 @@ public class DiscriminativeCKYDecoder implements Decoder {
 			if(costAugmenting && label != goldUnaryLabels[start][end])
 				spanScore += 1;
 			
+			if(kBestChart != null && childScore != Double.NEGATIVE_INFINITY)
+				kBestChart.addUnary(start, end, rule, spanScore);
+			
 			double fullScore = childScore + spanScore;
 			if(fullScore > unaryScores[label]) {
 				Span span = new Span(start, end, rule);
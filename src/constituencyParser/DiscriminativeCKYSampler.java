@@ -1,8 +1,12 @@
 package constituencyParser;
 
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import java.util.List;
+import java.util.SplittableRandom;
 
 import constituencyParser.Rule.Type;
 import constituencyParser.features.FirstOrderFeatureHolder;
@@ -22,9 +26,25 @@ public class DiscriminativeCKYSampler {
 	// stuff set by calculateProbabilities
 	int wordsSize;
 	List<Word> sentenceWords;
-	double[][][] insideLogProbabilitiesBeforeUnaries; // unnormalized probabilities; start, end, label
-	double[][][] insideLogProbabilitiesAfterUnaries;
+	TriangularChart insideLogProbabilitiesBeforeUnaries; // unnormalized probabilities; start, end, label
+	TriangularChart insideLogProbabilitiesAfterUnaries;
 	Pruning prune;
+	double[] cellScratch; // one cell of inside probabilities, accumulated in double precision before being stored in the chart
+	int[][] liveLabels; // for each cell (TriangularChart.cellIndex), the labels after unaries that are not pruned and can be built
+	double[][] liveScores; // inside log probabilities after unaries of liveLabels
+	
+	// set by calculateOutsideProbabilities
+	TriangularChart outsideLogProbabilitiesAfterUnaries;
+	TriangularChart posteriorsBeforeUnaries; // probability that a span with this label is built by a binary rule or terminal; start, end, label
+	TriangularChart unaryPosteriors; // probability that a unary with this top label is used; start, end, label
+	
+	// the distributions used by sample, built the first time a cell is visited; indexed like the charts
+	CellDistribution[] distributionsWithUnaries;
+	CellDistribution[] distributionsNoUnaries; // for the label below a unary rule
+	CellDistribution topDistribution;
+	
+	boolean fastLogAdd = false;
+	boolean floatCharts = false;
 	
 	boolean costAugmenting = false;
 	int[][] goldLabels; // gold span info used for cost augmenting: indices are start and end, value is label, -1 if no span for a start and end
@@ -49,21 +69,88 @@ public class DiscriminativeCKYSampler {
 		this.goldUnaryLabels = goldUnaryLabels;
 	}
 	
+	/**
+	 * Use a table lookup instead of Math.log and Math.exp when adding probabilities.
+	 * The error is below 1e-7 per addition, see LogSumExp.
+	 * @param fastLogAdd
+	 */
+	public void setFastLogAdd(boolean fastLogAdd) {
+		this.fastLogAdd = fastLogAdd;
+	}
+	
+	/**
+	 * Store the charts as floats instead of doubles, which halves their memory.
+	 * Sums are still done in double precision, only the stored values are rounded.
+	 * @param floatCharts
+	 */
+	public void setFloatCharts(boolean floatCharts) {
+		if(floatCharts != this.floatCharts) {
+			this.floatCharts = floatCharts;
+			insideLogProbabilitiesBeforeUnaries = null; // remade by calculateProbabilities and calculateOutsideProbabilities
+			outsideLogProbabilitiesAfterUnaries = null;
+		}
+	}
+	
+	/**
+	 * Approximate memory used by the charts, in bytes
+	 */
+	public long chartMemoryUsed() {
+		long total = 0;
+		for(TriangularChart chart : new TriangularChart[] {insideLogProbabilitiesBeforeUnaries, insideLogProbabilitiesAfterUnaries,
+				outsideLogProbabilitiesAfterUnaries, posteriorsBeforeUnaries, unaryPosteriors}) {
+			if(chart != null)
+				total += chart.memoryUsed();
+		}
+		return total;
+	}
+	
 	public Pruning calculateProbabilities(List<Word> words) {
-		prune = new Pruning(words.size(), labels.getNumberOfLabels());
+		return calculateProbabilities(words, null);
+	}
+	
+	/**
+	 * Calculate inside probabilities, only allowing spans that are not pruned by constraint
+	 * @param words
+	 * @param constraint labels not allowed, usually from makePosteriorPruning; null to allow everything
+	 * @return the pruning used by sample, which includes constraint; it is reused by the next call, so it is only valid until then
+	 */
+	public Pruning calculateProbabilities(List<Word> words, Pruning constraint) {
+		if(prune == null || prune == constraint)
+			prune = new Pruning(words.size(), labels.getNumberOfLabels());
+		else
+			prune.reset(words.size(), labels.getNumberOfLabels());
+		if(constraint != null)
+			prune.add(constraint);
 		sentenceWords = words;
 		wordsSize = words.size();
 		int labelsSize = labels.getNumberOfLabels();
-		int rulesSize = rules.getNumberOfBinaryRules();
-		insideLogProbabilitiesBeforeUnaries = new double[wordsSize][wordsSize+1][labelsSize];
-		insideLogProbabilitiesAfterUnaries = new double[wordsSize][wordsSize+1][labelsSize];
-		for(int i = 0; i < wordsSize; i++)
-			for(int j = 0; j < wordsSize+1; j++)
-				for(int k = 0; k < labelsSize; k++)
-					insideLogProbabilitiesBeforeUnaries[i][j][k] = Double.NEGATIVE_INFINITY;
+		if(insideLogProbabilitiesBeforeUnaries == null) {
+			insideLogProbabilitiesBeforeUnaries = new TriangularChart(floatCharts);
+			insideLogProbabilitiesAfterUnaries = new TriangularChart(floatCharts);
+		}
+		insideLogProbabilitiesBeforeUnaries.reset(wordsSize, labelsSize, Double.NEGATIVE_INFINITY);
+		insideLogProbabilitiesAfterUnaries.reset(wordsSize, labelsSize, Double.NEGATIVE_INFINITY);
+		if(cellScratch == null || cellScratch.length != labelsSize)
+			cellScratch = new double[labelsSize];
+		
+		int distributionsSize = TriangularChart.numberOfCells(wordsSize) * labelsSize;
+		if(distributionsWithUnaries == null || distributionsWithUnaries.length < distributionsSize) {
+			distributionsWithUnaries = new CellDistribution[distributionsSize];
+			distributionsNoUnaries = new CellDistribution[distributionsSize];
+		}
+		else {
+			Arrays.fill(distributionsWithUnaries, 0, distributionsSize, null);
+			Arrays.fill(distributionsNoUnaries, 0, distributionsSize, null);
+		}
+		topDistribution = null;
+		int numberOfCells = TriangularChart.numberOfCells(wordsSize);
+		if(liveLabels == null || liveLabels.length < numberOfCells) {
+			liveLabels = new int[numberOfCells][];
+			liveScores = new double[numberOfCells][];
+		}
 		
 		for(int i = 0; i < wordsSize; i++) {
-			double maxBeforeUnaries = 0;
+			double maxBeforeUnaries = Double.NEGATIVE_INFINITY;
 			
 			for(int label = 0; label < labelsSize; label++) {
 				double spanScore = firstOrderFeatures.scoreTerminal(i, label);
@@ -71,37 +158,41 @@ public class DiscriminativeCKYSampler {
 					spanScore += 1;
 				}
 				
-				insideLogProbabilitiesBeforeUnaries[i][i+1][label] = spanScore;
+				insideLogProbabilitiesBeforeUnaries.set(i, i+1, label, spanScore);
 				
 				if(spanScore > maxBeforeUnaries)
 					maxBeforeUnaries = spanScore;
 			}
 			
 			doUnaryProbabilities(words, i, i+1);
-			
-			for(int l = 0; l < labelsSize; l++) {
-				double p = insideLogProbabilitiesAfterUnaries[i][i+1][l];
-				if(p < maxBeforeUnaries - PRUNE_THRESHOLD) {
-					prune.prune(i, i+1, l);
-				}
-			}
+			pruneCell(words, i, i+1, maxBeforeUnaries);
 		}
 		
 		for(int length = 2; length < wordsSize + 1; length++) {
 			for(int start = 0; start < wordsSize + 1 - length; start++) {
-				double maxBeforeUnaries = 0;
-				for(int split = 1; split < length; split++) {
-					for(int r = 0; r < rulesSize; r++) {
-						
-						Rule rule = rules.getBinaryRule(r);
-						
-						int label = rule.getLabel();
-						
-						double probability = binaryProbability(start, start+length, start+split, r, rule);
-						
-						if(probability != Double.NEGATIVE_INFINITY) {
-							double fullProbability = addProbabilitiesLog(insideLogProbabilitiesBeforeUnaries[start][start+length][label], probability);  
-							insideLogProbabilitiesBeforeUnaries[start][start+length][label] = fullProbability;
+				double maxBeforeUnaries = Double.NEGATIVE_INFINITY;
+				double[] cell = cellScratch;
+				Arrays.fill(cell, Double.NEGATIVE_INFINITY);
+				int end = start + length;
+				for(int split = start + 1; split < end; split++) {
+					// only rules whose left child can be built, and then only if the right child can be built
+					int leftCell = TriangularChart.cellIndex(wordsSize, start, split);
+					int[] leftLabels = liveLabels[leftCell];
+					double[] leftScores = liveScores[leftCell];
+					int rightOffset = insideLogProbabilitiesAfterUnaries.offset(split, end);
+					for(int i = 0; i < leftLabels.length; i++) {
+						for(int r : rules.getBinaryRulesWithLeft(leftLabels[i])) {
+							Rule rule = rules.getBinaryRule(r);
+							if(prune.isPruned(split, end, rule.getRight()))
+								continue;
+							double rightChildProb = insideLogProbabilitiesAfterUnaries.get(rightOffset + rule.getRight());
+							if(rightChildProb == Double.NEGATIVE_INFINITY)
+								continue;
+							
+							int label = rule.getLabel();
+							double probability = binaryScore(start, end, split, r, rule) + leftScores[i] + rightChildProb;
+							double fullProbability = addProbabilitiesLog(cell[label], probability);
+							cell[label] = fullProbability;
 							
 							if(fullProbability > maxBeforeUnaries) {
 								maxBeforeUnaries = fullProbability;
@@ -110,54 +201,71 @@ public class DiscriminativeCKYSampler {
 					}
 				}
 				
-				doUnaryProbabilities(words, start, start + length);
+				int offset = insideLogProbabilitiesBeforeUnaries.offset(start, end);
+				for(int l = 0; l < labelsSize; l++)
+					insideLogProbabilitiesBeforeUnaries.set(offset + l, cell[l]);
 				
-				for(int l = 0; l < labelsSize; l++) {
-					double p = insideLogProbabilitiesAfterUnaries[start][start+length][l];
-					if(p < maxBeforeUnaries - PRUNE_THRESHOLD) {
-						prune.prune(start, start+length, l);
-					}
-				}
+				doUnaryProbabilities(words, start, end);
+				pruneCell(words, start, end, maxBeforeUnaries);
 			}
 		}
 		return prune;
 	}
 	
 	/**
-	 * returns ln(exp(x)+exp(y))
-	 * @param logProb1
-	 * @param logProb2
-	 * @return
+	 * Prunes labels much less likely than the best label in the cell.
+	 * If anything is pruned, unaries are redone without the pruned labels so that sample never reaches a label it can't build.
+	 * Then makes the cell's list of live labels.
 	 */
-	private double addProbabilitiesLog(double x, double y) {
-		if(x == Double.NEGATIVE_INFINITY)
-			return y;
-		if(y == Double.NEGATIVE_INFINITY)
-			return x;
-		
-		double larger;
-		double smaller;
-		if(x > y) {
-			larger = x;
-			smaller = y;
-		}
-		else {
-			larger = y;
-			smaller = x;
+	private void pruneCell(List<Word> words, int start, int end, double maxBeforeUnaries) {
+		boolean prunedAny = false;
+		boolean topCell = start == 0 && end == wordsSize;
+		int offset = insideLogProbabilitiesAfterUnaries.offset(start, end);
+		for(int l = 0; l < cellScratch.length; l++) {
+			if(topCell && labels.getTopLevelLabelIds().contains(l))
+				continue; // a label that can't be at the top is often the best in the top cell, don't let it prune every tree
+			if(insideLogProbabilitiesAfterUnaries.get(offset + l) < maxBeforeUnaries - PRUNE_THRESHOLD && !prune.isPruned(start, end, l)) {
+				prune.prune(start, end, l);
+				prunedAny = true;
+			}
 		}
+		if(prunedAny && rules.getNumberOfUnaryRules() > 0)
+			doUnaryProbabilities(words, start, end);
 		
-		return larger + Math.log(1 + Math.exp(smaller - larger));
+		TIntArrayList live = new TIntArrayList();
+		TDoubleArrayList scores = new TDoubleArrayList();
+		for(int l = 0; l < cellScratch.length; l++) {
+			double p = insideLogProbabilitiesAfterUnaries.get(offset + l);
+			if(p != Double.NEGATIVE_INFINITY && !prune.isPruned(start, end, l)) {
+				live.add(l);
+				scores.add(p);
+			}
+		}
+		int cell = TriangularChart.cellIndex(wordsSize, start, end);
+		liveLabels[cell] = live.toArray();
+		liveScores[cell] = scores.toArray();
+	}
+	
+	/**
+	 * returns ln(exp(x)+exp(y))
+	 */
+	private double addProbabilitiesLog(double x, double y) {
+		if(fastLogAdd)
+			return LogSumExp.addFast(x, y);
+		return LogSumExp.add(x, y);
 	}
 	
 	private double unaryProbability(int start, int end, int ruleNumber, Rule rule) {
-		double childProb = insideLogProbabilitiesBeforeUnaries[start][end][rule.getLeft()];
+		double childProb = insideLogProbabilitiesBeforeUnaries.get(start, end, rule.getLeft());
+		return unaryScore(start, end, ruleNumber, rule) + childProb;
+	}
+	
+	private double unaryScore(int start, int end, int ruleNumber, Rule rule) {
 		double spanScore = firstOrderFeatures.scoreUnary(start, end, ruleNumber);
 		if(costAugmenting && goldUnaryLabels[start][end] != rule.getLabel()) {
 			spanScore += 1;
 		}
-		
-		double probability = spanScore + childProb;
-		return probability;
+		return spanScore;
 	}
 	
 	/**
@@ -174,171 +282,452 @@ public class DiscriminativeCKYSampler {
 		if(prune.isPruned(start, split, rule.getLeft()) || prune.isPruned(split, end, rule.getRight()))
 			return Double.NEGATIVE_INFINITY;
 
-		double leftChildProb = insideLogProbabilitiesAfterUnaries[start][split][rule.getLeft()];
-		double rightChildProb = insideLogProbabilitiesAfterUnaries[split][end][rule.getRight()];
+		double leftChildProb = insideLogProbabilitiesAfterUnaries.get(start, split, rule.getLeft());
+		double rightChildProb = insideLogProbabilitiesAfterUnaries.get(split, end, rule.getRight());
 		
+		double probability = binaryScore(start, end, split, ruleNumber, rule) + leftChildProb + rightChildProb;
+		return probability;
+	}
+	
+	private double binaryScore(int start, int end, int split, int ruleNumber, Rule rule) {
 		double spanScore = firstOrderFeatures.scoreBinary(start, end, split, ruleNumber);
 		if(costAugmenting && goldLabels[start][end] != rule.getLabel()) {
 			spanScore += 1;
 		}
-		
-		double probability = spanScore + leftChildProb + rightChildProb;
-		return probability;
+		return spanScore;
 	}
 	
 	private void doUnaryProbabilities(List<Word> words, int start, int end) {
-		int numUnaryRules = rules.getNumberOfUnaryRules();
-		
-		double[] probs = insideLogProbabilitiesAfterUnaries[start][end];
-		double[] oldProbs = insideLogProbabilitiesBeforeUnaries[start][end];
+		int offset = insideLogProbabilitiesBeforeUnaries.offset(start, end); // the same for both charts
+		double[] probs = cellScratch;
 		for(int i = 0; i < probs.length; i++) {
-			probs[i] = oldProbs[i];
+			probs[i] = insideLogProbabilitiesBeforeUnaries.get(offset + i);
 		}
 		
-		for(int i = 0; i < numUnaryRules; i++) {
-			Rule rule = rules.getUnaryRule(i);
-			
-			double probability = unaryProbability(start, end, i, rule);
+		for(int child = 0; child < probs.length; child++) {
+			if(prune.isPruned(start, end, child))
+				continue; // sample won't use a unary over a pruned label, so it can't count here either
+			double childProb = insideLogProbabilitiesBeforeUnaries.get(offset + child);
+			if(childProb == Double.NEGATIVE_INFINITY)
+				continue;
 			
-			double fullProb = addProbabilitiesLog(probability, insideLogProbabilitiesAfterUnaries[start][end][rule.getLabel()]);
-			insideLogProbabilitiesAfterUnaries[start][end][rule.getLabel()] = fullProb;
+			for(int r : rules.getUnaryRulesWithChild(child)) {
+				Rule rule = rules.getUnaryRule(r);
+				double probability = unaryScore(start, end, r, rule) + childProb;
+				probs[rule.getLabel()] = addProbabilitiesLog(probability, probs[rule.getLabel()]);
+			}
+		}
+		
+		for(int i = 0; i < probs.length; i++) {
+			insideLogProbabilitiesAfterUnaries.set(offset + i, probs[i]);
 		}
 	}
 	
 	public void printProbs() {
 		for(Integer topLabel : labels.getTopLevelLabelIds()) {
-			double score = insideLogProbabilitiesAfterUnaries[0][wordsSize][topLabel];
+			double score = insideLogProbabilitiesAfterUnaries.get(0, wordsSize, topLabel);
 			
 			System.out.println(labels.getLabel(topLabel) + " " + score);
 		}
 	}
 	
-	public List<Span> sample() {
-		List<Double> logProbabilities = new ArrayList<>();
-		List<Integer> labelsToSample = new ArrayList<>();
+	/**
+	 * Calculates the outside probabilities and from them the posterior probability of each span.
+	 * Must be called after calculateProbabilities.
+	 */
+	public void calculateOutsideProbabilities() {
+		int labelsSize = labels.getNumberOfLabels();
+		
+		if(outsideLogProbabilitiesAfterUnaries == null) {
+			outsideLogProbabilitiesAfterUnaries = new TriangularChart(floatCharts);
+			posteriorsBeforeUnaries = new TriangularChart(floatCharts);
+			unaryPosteriors = new TriangularChart(floatCharts);
+		}
+		outsideLogProbabilitiesAfterUnaries.reset(wordsSize, labelsSize, Double.NEGATIVE_INFINITY);
+		posteriorsBeforeUnaries.reset(wordsSize, labelsSize, 0);
+		unaryPosteriors.reset(wordsSize, labelsSize, 0);
+		
+		double logPartition = Double.NEGATIVE_INFINITY;
 		for(Integer topLabel : labels.getTopLevelLabelIds()) {
 			if(prune.isPruned(0, wordsSize, topLabel))
 				continue;
-			
-			double score = insideLogProbabilitiesAfterUnaries[0][wordsSize][topLabel];
-			if(score == Double.NEGATIVE_INFINITY)
+			outsideLogProbabilitiesAfterUnaries.set(0, wordsSize, topLabel, 0);
+			logPartition = addProbabilitiesLog(logPartition, insideLogProbabilitiesAfterUnaries.get(0, wordsSize, topLabel));
+		}
+		if(logPartition == Double.NEGATIVE_INFINITY)
+			return; // no trees, all posteriors are 0
+		
+		double[] outsideAfter = new double[labelsSize];
+		double[] outsideBefore = new double[labelsSize]; // only needed within a cell, so not kept in a chart
+		for(int length = wordsSize; length > 0; length--) {
+			for(int start = 0; start < wordsSize + 1 - length; start++) {
+				int end = start + length;
+				int offset = outsideLogProbabilitiesAfterUnaries.offset(start, end); // the same for every chart
+				for(int l = 0; l < labelsSize; l++)
+					outsideAfter[l] = outsideLogProbabilitiesAfterUnaries.get(offset + l);
+				
+				// unaries, the same rules as doUnaryProbabilities
+				System.arraycopy(outsideAfter, 0, outsideBefore, 0, labelsSize);
+				for(int parent = 0; parent < labelsSize; parent++) {
+					if(outsideAfter[parent] == Double.NEGATIVE_INFINITY)
+						continue;
+					for(int r : rules.getUnaryRulesWithLabel(parent)) {
+						Rule rule = rules.getUnaryRule(r);
+						if(prune.isPruned(start, end, rule.getLeft()))
+							continue;
+						
+						double outside = outsideAfter[parent] + unaryScore(start, end, r, rule);
+						outsideBefore[rule.getLeft()] = addProbabilitiesLog(outsideBefore[rule.getLeft()], outside);
+						double posterior = Math.exp(outside + insideLogProbabilitiesBeforeUnaries.get(offset + rule.getLeft()) - logPartition);
+						unaryPosteriors.set(offset + parent, unaryPosteriors.get(offset + parent) + posterior);
+					}
+				}
+				
+				for(int l = 0; l < labelsSize; l++) {
+					double logPosterior = insideLogProbabilitiesBeforeUnaries.get(offset + l) + outsideBefore[l] - logPartition;
+					posteriorsBeforeUnaries.set(offset + l, Math.exp(logPosterior));
+				}
+				
+				if(length == 1)
+					continue;
+				
+				// binaries, the same rules as the inside pass
+				for(int split = start + 1; split < end; split++) {
+					int leftOffset = outsideLogProbabilitiesAfterUnaries.offset(start, split);
+					int rightOffset = outsideLogProbabilitiesAfterUnaries.offset(split, end);
+					for(int leftLabel : liveLabels[TriangularChart.cellIndex(wordsSize, start, split)]) {
+						for(int r : rules.getBinaryRulesWithLeft(leftLabel)) {
+							Rule rule = rules.getBinaryRule(r);
+							double outsideParent = outsideBefore[rule.getLabel()];
+							if(outsideParent == Double.NEGATIVE_INFINITY)
+								continue;
+							if(prune.isPruned(split, end, rule.getRight()))
+								continue;
+						
+							double outside = outsideParent + binaryScore(start, end, split, r, rule);
+							int left = leftOffset + rule.getLeft();
+							int right = rightOffset + rule.getRight();
+							double leftInside = insideLogProbabilitiesAfterUnaries.get(left);
+							double rightInside = insideLogProbabilitiesAfterUnaries.get(right);
+							outsideLogProbabilitiesAfterUnaries.set(left, addProbabilitiesLog(outsideLogProbabilitiesAfterUnaries.get(left), outside + rightInside));
+							outsideLogProbabilitiesAfterUnaries.set(right, addProbabilitiesLog(outsideLogProbabilitiesAfterUnaries.get(right), outside + leftInside));
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * The posterior probability that a span from start to end with label is in the tree, either built by a binary rule or terminal or as the top of a unary.
+	 * Must be called after calculateOutsideProbabilities.
+	 */
+	public double getSpanPosterior(int start, int end, int label) {
+		return posteriorsBeforeUnaries.get(start, end, label) + unaryPosteriors.get(start, end, label);
+	}
+	
+	/**
+	 * Prunes every label whose posterior is below threshold, in addition to the labels already pruned.
+	 * Must be called after calculateOutsideProbabilities.
+	 * The result can be passed back to calculateProbabilities to sample only from what is left.
+	 * @param threshold
+	 * @return
+	 */
+	public Pruning makePosteriorPruning(double threshold) {
+		int labelsSize = labels.getNumberOfLabels();
+		Pruning result = new Pruning(prune);
+		for(int start = 0; start < wordsSize; start++) {
+			for(int end = start + 1; end < wordsSize + 1; end++) {
+				for(int l = 0; l < labelsSize; l++) {
+					if(getSpanPosterior(start, end, l) < threshold)
+						result.prune(start, end, l);
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Finds the tree with the largest sum of span posteriors, the max-marginal (max-recall) tree.
+	 * Must be called after calculateOutsideProbabilities.
+	 * @return the spans of the tree, with their children set; empty if there is no tree
+	 */
+	public List<Span> decodeMaxMarginal() {
+		int labelsSize = labels.getNumberOfLabels();
+		
+		TriangularChart bestAfterUnaries = new TriangularChart(false);
+		bestAfterUnaries.reset(wordsSize, labelsSize, Double.NEGATIVE_INFINITY);
+		Span[] spansAfterUnaries = new Span[TriangularChart.numberOfCells(wordsSize) * labelsSize]; // indexed like the chart
+		double[] before = new double[labelsSize]; // only needed within a cell
+		Span[] spansBeforeUnaries = new Span[labelsSize];
+		
+		for(int length = 1; length < wordsSize + 1; length++) {
+			for(int start = 0; start < wordsSize + 1 - length; start++) {
+				int end = start + length;
+				int offset = bestAfterUnaries.offset(start, end);
+				Arrays.fill(before, Double.NEGATIVE_INFINITY);
+				
+				if(length == 1) {
+					for(int l = 0; l < labelsSize; l++) {
+						before[l] = posteriorsBeforeUnaries.get(offset + l);
+						spansBeforeUnaries[l] = new Span(start, l);
+					}
+				}
+				else {
+					for(int split = start + 1; split < end; split++) {
+						int leftOffset = bestAfterUnaries.offset(start, split);
+						int rightOffset = bestAfterUnaries.offset(split, end);
+						for(int leftLabel : liveLabels[TriangularChart.cellIndex(wordsSize, start, split)]) {
+							for(int r : rules.getBinaryRulesWithLeft(leftLabel)) {
+								Rule rule = rules.getBinaryRule(r);
+								if(prune.isPruned(split, end, rule.getRight()))
+									continue;
+							
+								double score = posteriorsBeforeUnaries.get(offset + rule.getLabel()) + bestAfterUnaries.get(leftOffset + rule.getLeft()) + bestAfterUnaries.get(rightOffset + rule.getRight());
+								if(score > before[rule.getLabel()]) {
+									before[rule.getLabel()] = score;
+									Span span = new Span(start, end, split, rule);
+									span.setLeft(spansAfterUnaries[leftOffset + rule.getLeft()]);
+									span.setRight(spansAfterUnaries[rightOffset + rule.getRight()]);
+									spansBeforeUnaries[rule.getLabel()] = span;
+								}
+							}
+						}
+					}
+				}
+				
+				for(int l = 0; l < labelsSize; l++) {
+					bestAfterUnaries.set(offset + l, before[l]);
+					spansAfterUnaries[offset + l] = spansBeforeUnaries[l];
+				}
+				for(int child = 0; child < labelsSize; child++) {
+					if(prune.isPruned(start, end, child) || insideLogProbabilitiesBeforeUnaries.get(offset + child) == Double.NEGATIVE_INFINITY)
+						continue;
+					for(int r : rules.getUnaryRulesWithChild(child)) {
+						Rule rule = rules.getUnaryRule(r);
+						double score = unaryPosteriors.get(offset + rule.getLabel()) + before[child];
+						if(score > bestAfterUnaries.get(offset + rule.getLabel())) {
+							bestAfterUnaries.set(offset + rule.getLabel(), score);
+							Span span = new Span(start, end, rule);
+							span.setLeft(spansBeforeUnaries[child]);
+							spansAfterUnaries[offset + rule.getLabel()] = span;
+						}
+					}
+				}
+				Arrays.fill(spansBeforeUnaries, null);
+			}
+		}
+		
+		int topOffset = bestAfterUnaries.offset(0, wordsSize);
+		Span top = null;
+		double bestScore = Double.NEGATIVE_INFINITY;
+		for(Integer topLabel : labels.getTopLevelLabelIds()) {
+			if(prune.isPruned(0, wordsSize, topLabel) || insideLogProbabilitiesAfterUnaries.get(0, wordsSize, topLabel) == Double.NEGATIVE_INFINITY)
 				continue;
-			
-			logProbabilities.add(score);
-			labelsToSample.add(topLabel);
+			if(bestAfterUnaries.get(topOffset + topLabel) > bestScore) {
+				bestScore = bestAfterUnaries.get(topOffset + topLabel);
+				top = spansAfterUnaries[topOffset + topLabel];
+			}
+		}
+		
+		List<Span> result = new ArrayList<>();
+		if(top != null)
+			addSpans(top, result);
+		return result;
+	}
+	
+	private void addSpans(Span span, List<Span> resultAccumulator) {
+		resultAccumulator.add(span);
+		if(span.getLeft() != null)
+			addSpans(span.getLeft(), resultAccumulator);
+		if(span.getRight() != null)
+			addSpans(span.getRight(), resultAccumulator);
+	}
+	
+	/**
+	 * False if every top level label is pruned or can't be built, so sample would fail
+	 */
+	public boolean canSample() {
+		for(Integer topLabel : labels.getTopLevelLabelIds()) {
+			if(!prune.isPruned(0, wordsSize, topLabel) && insideLogProbabilitiesAfterUnaries.get(0, wordsSize, topLabel) != Double.NEGATIVE_INFINITY)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Sample a parse tree from the distribution calculated by calculateProbabilities
+	 * @param random each thread should use its own
+	 * @return
+	 */
+	public List<Span> sample(SplittableRandom random) {
+		CellDistribution top = topDistribution;
+		if(top == null) {
+			top = makeTopDistribution();
+			topDistribution = top;
 		}
 		
-		if(logProbabilities.size() == 0) {
+		if(top.size() == 0) {
 			System.out.println("top level fail");
 			return new ArrayList<>();
 		}
 		
-		int chosenTopLabel = labelsToSample.get(sample(logProbabilities));
+		int chosenTopLabel = top.rules[sample(top.cumulative, random)].getLabel();
 		
 		List<Span> sample = new ArrayList<>();
 		
-		sample(0, wordsSize, chosenTopLabel, true, sample);
+		sample(0, wordsSize, chosenTopLabel, true, random, sample);
 		
 		return sample;
 	}
 	
-	private void sample(int start, int end, int label, boolean allowUnaries, List<Span> resultAccumulator) {
-		List<Double> logProbabilities = new ArrayList<>();
-		List<Span> spans = new ArrayList<>();
-		if(allowUnaries) {
-			int numUnaryRules = rules.getNumberOfUnaryRules();
+	private void sample(int start, int end, int label, boolean allowUnaries, SplittableRandom random, List<Span> resultAccumulator) {
+		CellDistribution[] distributions = allowUnaries ? distributionsWithUnaries : distributionsNoUnaries;
+		int index = insideLogProbabilitiesBeforeUnaries.offset(start, end) + label;
+		CellDistribution distribution = distributions[index];
+		if(distribution == null) {
+			distribution = makeDistribution(start, end, label, allowUnaries);
+			distributions[index] = distribution; // if two threads build the same distribution at once, one of them is just thrown away
+		}
+		
+		int sampleIndex = sample(distribution.cumulative, random);
+		Rule rule = distribution.rules[sampleIndex];
+		Span span;
+		if(rule.getType() == Type.BINARY)
+			span = new Span(start, end, distribution.splits[sampleIndex], rule);
+		else if(rule.getType() == Type.UNARY)
+			span = new Span(start, end, rule);
+		else
+			span = new Span(start, rule);
+		
+		resultAccumulator.add(span);
+		if(span.getRule().getType() == Type.UNARY) {
+			sample(start, end, span.getRule().getLeft(), false, random, resultAccumulator);
+		}
+		else if(end - start == 1)
+			return;
+		else {
+			sample(start, span.getSplit(), span.getRule().getLeft(), true, random, resultAccumulator);
+			sample(span.getSplit(), end, span.getRule().getRight(), true, random, resultAccumulator);
+		}
+	}
+	
+	/**
+	 * The normalized distribution over the ways a cell can be built, stored as cumulative probabilities.
+	 * Fields are final so a distribution built by one thread is safe to use from other threads.
+	 */
+	private static class CellDistribution {
+		final double[] cumulative;
+		final Rule[] rules; // for the top level distribution, a terminal rule holding the top label
+		final int[] splits; // absolute position, only used for binary rules
+		
+		CellDistribution(TDoubleArrayList logProbabilities, List<Rule> rules, TIntArrayList splits) {
+			this.rules = rules.toArray(new Rule[rules.size()]);
+			this.splits = splits.toArray();
+			
+			int size = logProbabilities.size();
+			cumulative = new double[size];
+			if(size == 0)
+				return;
+			
+			double maxLogP = logProbabilities.max();
+			double sumExp = 0;
+			for(int i = 0; i < size; i++) {
+				double p = Math.exp(logProbabilities.getQuick(i) - maxLogP);
+				sumExp += p;
+				cumulative[i] = sumExp;
+			}
+			for(int i = 0; i < size; i++) {
+				cumulative[i] /= sumExp;
+			}
+		}
+		
+		int size() {
+			return cumulative.length;
+		}
+	}
+	
+	private CellDistribution makeTopDistribution() {
+		TDoubleArrayList logProbabilities = new TDoubleArrayList();
+		List<Rule> topRules = new ArrayList<>();
+		for(Integer topLabel : labels.getTopLevelLabelIds()) {
+			if(prune.isPruned(0, wordsSize, topLabel))
+				continue;
+			
+			double score = insideLogProbabilitiesAfterUnaries.get(0, wordsSize, topLabel);
+			if(score == Double.NEGATIVE_INFINITY)
+				continue;
 			
-			for(int r = 0; r < numUnaryRules; r++) {
+			logProbabilities.add(score);
+			topRules.add(Rule.getTerminalRule(topLabel));
+		}
+		return new CellDistribution(logProbabilities, topRules, new TIntArrayList());
+	}
+	
+	private CellDistribution makeDistribution(int start, int end, int label, boolean allowUnaries) {
+		TDoubleArrayList logProbabilities = new TDoubleArrayList();
+		List<Rule> options = new ArrayList<>();
+		TIntArrayList splits = new TIntArrayList();
+		if(allowUnaries) {
+			for(int r : rules.getUnaryRulesWithLabel(label)) {
 				Rule rule = rules.getUnaryRule(r);
+				if(prune.isPruned(start, end, rule.getLeft()))
+					continue;
 				
-				if(rule.getLabel() == label) {
-					if(prune.isPruned(start, end, rule.getLeft()))
-						continue;
-					
-					double prob = unaryProbability(start, end, r, rule);
-					if(prob == Double.NEGATIVE_INFINITY)
-						continue;
-					
-					logProbabilities.add(prob);
-					Span span = new Span(start, end, rule);
-					spans.add(span);
-				}
+				double prob = unaryProbability(start, end, r, rule);
+				if(prob == Double.NEGATIVE_INFINITY)
+					continue;
+				
+				logProbabilities.add(prob);
+				options.add(rule);
+				splits.add(0);
 			}
 		}
 		
 		if(end - start == 1) { // terminals
-			double prob = insideLogProbabilitiesBeforeUnaries[start][end][label];
+			double prob = insideLogProbabilitiesBeforeUnaries.get(start, end, label);
 			logProbabilities.add(prob);
-			spans.add(new Span(start, label));
+			options.add(Rule.getTerminalRule(label));
+			splits.add(0);
 		}
 		else {
 			// binary
-			int numBinRules = rules.getNumberOfBinaryRules();
+			int[] labelRules = rules.getBinaryRulesWithLabel(label);
 			for(int split = 1; split < end-start; split++) {
-				for(int r = 0; r < numBinRules; r++) {
+				for(int r : labelRules) {
 					Rule rule = rules.getBinaryRule(r);
+					double prob = binaryProbability(start, end, start+split, r, rule);
+					if(prob == Double.NEGATIVE_INFINITY)
+						continue;
 					
-					if(rule.getLabel() == label) {
-						if(prune.isPruned(start, start+split, rule.getLeft()) || prune.isPruned(start+split, end, rule.getRight()))
-							continue;
-						
-						double prob = binaryProbability(start, end, start+split, r, rule);
-						if(prob == Double.NEGATIVE_INFINITY)
-							continue;
-						
-						logProbabilities.add(prob);
-						Span span = new Span(start, end, start+split, rule);
-						spans.add(span);
-					}
+					logProbabilities.add(prob);
+					options.add(rule);
+					splits.add(start+split);
 				}
 			}
 		}
 		
-		int sampleIndex = sample(logProbabilities);
-		Span span = spans.get(sampleIndex);
-		resultAccumulator.add(span);
-		if(span.getRule().getType() == Type.UNARY) {
-			sample(start, end, span.getRule().getLeft(), false, resultAccumulator);
-		}
-		else if(end - start == 1)
-			return;
-		else {
-			sample(start, span.getSplit(), span.getRule().getLeft(), true, resultAccumulator);
-			sample(span.getSplit(), end, span.getRule().getRight(), true, resultAccumulator);
-		}
+		if(logProbabilities.size() == 0)
+			throw new RuntimeException("No way to build label " + label + " from " + start + " to " + end);
+		
+		return new CellDistribution(logProbabilities, options, splits);
 	}
 	
 	/**
-	 * Samples a set of things based on log probabilities
-	 * @param cumulativeValues
-	 * @param cumulative
+	 * Samples an index from a distribution given as cumulative probabilities
+	 * @param cumulativeProbabilities
+	 * @param random
 	 * @return the index of the sampled item
 	 */
-	private int sample(List<Double> logProbabilities) {
-		double maxLogP = Collections.max(logProbabilities);
-		double sumExp = 0;
-		for(double logP : logProbabilities) {
-			sumExp += Math.exp(logP - maxLogP);
-		}
-		double logSumProbabilities = maxLogP + Math.log(sumExp);
-		
-		double cumulative = 0;
-		List<Double> cumulativeProbabilities = new ArrayList<>();
-		for(double logP : logProbabilities) {
-			double prob = Math.exp(logP - logSumProbabilities);
-			cumulative += prob;
-			cumulativeProbabilities.add(cumulative);
-		}
-		
-		double sample = Math.random();
-		int sampleIndex = Collections.binarySearch(cumulativeProbabilities, sample);
+	private int sample(double[] cumulativeProbabilities, SplittableRandom random) {
+		double sample = random.nextDouble();
+		int sampleIndex = Arrays.binarySearch(cumulativeProbabilities, sample);
 		if(sampleIndex < 0) { // usually true, this is what binarySearch does when it does not find the exact value
 			sampleIndex = -(sampleIndex + 1);
 		}
-		if(sampleIndex > logProbabilities.size()) {
+		if(sampleIndex >= cumulativeProbabilities.length) {
 			// probably a rounding error
-			System.out.println("Warning: rounding error");
-			sampleIndex = logProbabilities.size() - 1;
+			sampleIndex = cumulativeProbabilities.length - 1;
 		}
 		
 		return sampleIndex;
@@ -1,14 +1,24 @@
 package constituencyParser;
 
+import gnu.trove.list.array.TIntArrayList;
+
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
-import constituencyParser.Rule.Type;
+import constituencyParser.ConstituencyTree.Node;
 
 /**
  * Used by RandomizeedGreedyDecoder to find all possible greedy changes to a parse tree.
+ * Changes are made in place on a ConstituencyTree: each candidate is made, scored, and undone, and then the best one is made again.
  */
 public class GreedyChange {
 	/**
@@ -21,209 +31,380 @@ public class GreedyChange {
 			this.spans = spans;
 			this.parents = parents;
 		}
-		
+
 		List<Span> spans;
 		int[] parents;
 	}
-	
+
 	/**
-	 * Another way of representing parse trees that makes doing greedy updates easier.
+	 * Scores the candidate trees made by greedy changes.  The tree is only in the candidate state during the call.
+	 * The changes since the last commit of the tree are the difference between the candidate and the tree that was last passed to changeMade,
+	 * so scorers can score just the part that changed.
 	 */
-	private static class ConstituencyNode {
-		ConstituencyNode parent;
-		int unaryLabel; // -1 if there is not a unary on this
-		int label;
-		
-		boolean terminal;
-		int index; // for terminals
-		
-		// for non-terminals
-		ConstituencyNode left;
-		ConstituencyNode right;
+	public interface CandidateScorer {
+		public double score(ConstituencyTree tree);
 		
-		int start;
-		int end;
-		
-		public ConstituencyNode() {
-			unaryLabel = -1;
-		}
+		/**
+		 * Score of the tree when it has no changes since its last commit
+		 */
+		public double getScore(ConstituencyTree tree);
 		
-		public ConstituencyNode(ConstituencyNode other) {
-			this.parent = null;
-			this.unaryLabel = other.unaryLabel;
-			this.label = other.label;
-			this.terminal = other.terminal;
-			this.index = other.index;
-			if(other.left != null)
-				this.left = new ConstituencyNode(other.left, this);
-			if(other.right != null)
-				this.right = new ConstituencyNode(other.right, this);
-			this.start = other.start;
-			this.end = other.end;
-		}
+		/**
+		 * Called when a change is kept, before the tree is committed
+		 */
+		public void changeMade(ConstituencyTree tree);
+	}
+
+	/**
+	 * Makes scorers for copies of a tree, so candidates can be scored on other threads
+	 */
+	public interface ScorerFactory {
+		public CandidateScorer makeScorer(ConstituencyTree tree);
 		
-		public ConstituencyNode(ConstituencyNode other, ConstituencyNode parent) {
-			this.parent = parent;
-			this.unaryLabel = other.unaryLabel;
-			this.label = other.label;
-			this.terminal = other.terminal;
-			this.index = other.index;
-			if(other.left != null)
-				this.left = new ConstituencyNode(other.left, this);
-			if(other.right != null)
-				this.right = new ConstituencyNode(other.right, this);
-			this.start = other.start;
-			this.end = other.end;
+		/**
+		 * Called with each scorer that was made once its candidates are scored, on the thread making the change
+		 */
+		public void done(CandidateScorer scorer);
+	}
+
+	/**
+	 * Which candidate change is kept
+	 */
+	public enum MoveAcceptance {
+		BEST, // score every candidate and keep the best
+		FIRST_IMPROVEMENT // keep the first candidate that scores better than the current tree, or the best if none does
+	}
+
+	/**
+	 * The best candidate found so far
+	 */
+	private static class Choice {
+		boolean found = false;
+		double score = Double.NEGATIVE_INFINITY;
+		double improvementThreshold = Double.POSITIVE_INFINITY; // stop looking once a candidate scores more than this
+		boolean done = false;
+		int index; // for candidates scored in chunks
+		Node attachTo; // for reattachments
+		int unaryLabel;
+		int label;
+	}
+
+	private LabelEnumeration labels;
+	private RuleEnumeration rules;
+	private MoveAcceptance moveAcceptance = MoveAcceptance.BEST;
+	
+	private Executor executor; // null to always score candidates on the calling thread
+	private int maximumChunks;
+	private int minimumChunkSize;
+
+	public GreedyChange(LabelEnumeration labels, RuleEnumeration rules) {
+		this.labels = labels;
+		this.rules = rules;
+	}
+	
+	public void setMoveAcceptance(MoveAcceptance moveAcceptance) {
+		this.moveAcceptance = moveAcceptance;
+	}
+	
+	/**
+	 * Score the candidates of makeBestChange in chunks on executor when there are enough of them, with the calling thread doing its share.
+	 * Each chunk is scored on its own copy of the tree.  The change made is the same as when scoring on one thread.
+	 * @param executor can be shared with the tasks calling makeBestChange; chunks no other thread has started are run by the calling thread, so this can't deadlock
+	 * @param maximumChunks
+	 * @param minimumChunkSize number of candidates in each chunk at least
+	 */
+	public void setParallelScoring(Executor executor, int maximumChunks, int minimumChunkSize) {
+		this.executor = executor;
+		this.maximumChunks = maximumChunks;
+		this.minimumChunkSize = minimumChunkSize;
+	}
+	
+	private Choice makeChoice(ConstituencyTree tree, CandidateScorer scorer) {
+		Choice choice = new Choice();
+		if(moveAcceptance == MoveAcceptance.FIRST_IMPROVEMENT)
+			choice.improvementThreshold = scorer.getScore(tree);
+		return choice;
+	}
+
+	/**
+	 * Change the labels of the span (or spans if there is a unary rule) that starts at start and goes to end to the best scoring option,
+	 * or the first that improves the score if using MoveAcceptance.FIRST_IMPROVEMENT.
+	 * @param tree
+	 * @param start
+	 * @param end
+	 * @param topLevel only allow top level labels
+	 * @param pruning
+	 * @param scorer
+	 * @return false if there were no valid options, in which case tree is unchanged
+	 */
+	public boolean makeBestLabelChange(ConstituencyTree tree, int start, int end, boolean topLevel, Pruning pruning, CandidateScorer scorer) {
+		Node toUpdate = tree.getNode(start, end);
+		Choice best = makeChoice(tree, scorer);
+		tryLabels(tree, toUpdate, topLevel, pruning, scorer, null, best);
+		if(!best.found)
+			return false;
+		tree.setLabels(toUpdate, best.unaryLabel, best.label);
+		scorer.changeMade(tree);
+		tree.commit();
+		return true;
+	}
+
+	/**
+	 * Make the best scoring local change from changing the span at (spanToUpdateStart, spanToUpdateEnd), or the first that improves the score if using MoveAcceptance.FIRST_IMPROVEMENT.
+	 * This includes trying to connect this span to the tree differently and iterating over different label values at each location.
+	 * The current tree is always one of the options.
+	 * @param tree
+	 * @param spanToUpdateStart
+	 * @param spanToUpdateEnd
+	 * @param pruning
+	 * @param scorer
+	 */
+	public void makeBestChange(ConstituencyTree tree, int spanToUpdateStart, int spanToUpdateEnd, Pruning pruning, CandidateScorer scorer) {
+		makeBestChange(tree, spanToUpdateStart, spanToUpdateEnd, pruning, scorer, null);
+	}
+
+	/**
+	 * Same as makeBestChange, but if parallel scoring is set and there are enough candidates they are scored in chunks on other threads
+	 * @param scorerFactory makes the scorers for the other threads; null to score on this thread
+	 */
+	public void makeBestChange(ConstituencyTree tree, int spanToUpdateStart, int spanToUpdateEnd, Pruning pruning, CandidateScorer scorer, ScorerFactory scorerFactory) {
+		Node toUpdate = tree.getNode(spanToUpdateStart, spanToUpdateEnd);
+		if(toUpdate.parent == null)
+			return; // it doesn't really make sense to remove and add back the entire tree
+
+		if(scorerFactory != null && executor != null && makeBestChangeInChunks(tree, spanToUpdateStart, spanToUpdateEnd, pruning, scorer, scorerFactory))
+			return;
+
+		Choice best = makeChoice(tree, scorer);
+		tryReattachments(tree, toUpdate, pruning, scorer, best);
+		if(!best.found)
+			return;
+		tree.detach(toUpdate);
+		tree.attach(toUpdate, best.attachTo);
+		tree.setLabels(toUpdate.parent, best.unaryLabel, best.label);
+		scorer.changeMade(tree);
+		tree.commit();
+	}
+
+	/**
+	 * Goes through the candidates for one greedy change one at a time, making each one in place on the tree when next is called.
+	 * Only the candidate the cursor is on is built as spans, so a consumer that keeps the best one seen so far holds at most two trees.
+	 * The tree is put back as it was once the cursor runs out of candidates or close is called.
+	 */
+	public static class CandidateCursor implements Iterator<ParentedSpans> {
+		private ConstituencyTree tree;
+		private Node toUpdate;
+		private boolean reattach; // if candidates move toUpdate, otherwise they only relabel it
+		private int mark;
+
+		// the candidates, found before the cursor is used; attachTo is empty when not reattaching
+		private List<Node> attachTo = new ArrayList<>();
+		private TIntArrayList unaryLabels = new TIntArrayList();
+		private TIntArrayList labels = new TIntArrayList();
+		private int position = 0;
+
+		private CandidateCursor(ConstituencyTree tree, Node toUpdate, boolean reattach) {
+			this.tree = tree;
+			this.toUpdate = toUpdate;
+			this.reattach = reattach;
+			this.mark = tree.mark();
 		}
-		
-		private void updateSpanLocations() {
-			if(terminal){
-				start = index;
-				end = index + 1;
-				return;
-			}
-			else {
-				left.updateSpanLocations();
-				right.updateSpanLocations();
-				start = left.start;
-				end = right.end;
+
+		/**
+		 * Record the candidate the tree is in now
+		 */
+		private void add() {
+			Node labeled = toUpdate;
+			if(reattach) {
+				labeled = toUpdate.parent;
+				attachTo.add(labeled.left == toUpdate ? labeled.right : labeled.left);
 			}
+			unaryLabels.add(labeled.unaryLabel);
+			labels.add(labeled.label);
 		}
-		
-		List<ConstituencyNode> getAdjacent(ConstituencyNode node) {
-			List<ConstituencyNode> result = new ArrayList<>();
-			getAdjacent(node, result);
-			return result;
-		}
-		
-		private void getAdjacent(ConstituencyNode node, List<ConstituencyNode> result) {
-			if(start == node.end || end == node.start)
-				result.add(this);
-			
-			if(!terminal) {
-				left.getAdjacent(node, result);
-				right.getAdjacent(node, result);
-			}
+
+		public int size() {
+			return labels.size();
 		}
-		
-		private void remove(ConstituencyNode node) {
-			if(!terminal) {
-				if(left == node) {
-					right.parent = parent;
-					if(parent.left == this)
-						parent.left = right;
-					else
-						parent.right = right;
-				}
-				else if(right == node) {
-					left.parent = parent;
-					if(parent.left == this)
-						parent.left = left;
-					else
-						parent.right = left;
-				}
-				else {
-					left.remove(node);
-					right.remove(node);
-				}
-			}
+
+		@Override
+		public boolean hasNext() {
+			if(position < labels.size())
+				return true;
+			close();
+			return false;
 		}
-		
+
 		/**
-		 * Finds a node with same start and end as 
-		 * @param node
-		 * @return
+		 * Change the tree to the next candidate
+		 * @return the candidate tree as spans
 		 */
-		private ConstituencyNode insertNodeAsSibling(ConstituencyNode node) {
-			ConstituencyNode newParent = new ConstituencyNode();
-			newParent.parent = parent;
-			if(parent != null) {
-				if(parent.left == this) {
-					parent.left = newParent;
-				}
-				else {
-					parent.right = newParent;
-				}
-			}
-			
-			if(node.start == end) {
-				newParent.left = this;
-				newParent.right = node;
-			}
-			else if(node.end == start) {
-				newParent.left = node;
-				newParent.right = this;
+		@Override
+		public ParentedSpans next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+			tree.undo(mark);
+			if(reattach) {
+				tree.detach(toUpdate);
+				tree.attach(toUpdate, attachTo.get(position));
+				tree.setLabels(toUpdate.parent, unaryLabels.get(position), labels.get(position));
 			}
 			else {
-				throw new RuntimeException();
+				tree.setLabels(toUpdate, unaryLabels.get(position), labels.get(position));
 			}
-			
-			this.parent = newParent;
-			node.parent = newParent;
-			
-			return newParent;
+			position++;
+			return tree.getSpans();
 		}
-		
-		private ParentedSpans getSpans() {
-			List<Span> spans = new ArrayList<>();
-			List<Integer> parents = new ArrayList<>();
-			getSpans(spans, parents, -1);
-			ParentedSpans result = new ParentedSpans();
-			result.parents = new int[parents.size()];
-			for(int i = 0; i < parents.size(); i++)
-				result.parents[i] = parents.get(i);
-			result.spans = spans;
-			return result;
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
 		}
-		
-		private void getSpans(List<Span> result, List<Integer> parents, int parentIndex) {
-			if(unaryLabel != -1) {
-				parents.add(parentIndex);
-				parentIndex = result.size(); // set the unary index to the parent index for the terminal and binary rules below
-				result.add(new Span(start, end, unaryLabel, label));
+
+		/**
+		 * Put the tree back as it was when the cursor was made
+		 */
+		public void close() {
+			tree.undo(mark);
+		}
+	}
+
+	/**
+	 * Candidates from changing the labels of the span (or spans if there is a unary rule) that starts at start and goes to end.
+	 * @param tree must have no changes since its last commit
+	 * @param start
+	 * @param end
+	 * @param topLevel only allow top level labels
+	 * @param pruning
+	 * @return
+	 */
+	public CandidateCursor greedyLabelChanges(ConstituencyTree tree, int start, int end, boolean topLevel, Pruning pruning) {
+		CandidateCursor cursor = new CandidateCursor(tree, tree.getNode(start, end), false);
+		tryLabels(tree, cursor.toUpdate, topLevel, pruning, makeRecorder(cursor), null, new Choice());
+		return cursor;
+	}
+
+	/**
+	 * Candidates from connecting the span at (spanToUpdateStart, spanToUpdateEnd) to the tree differently, with each label value at each location.
+	 * If the span is the root, the only candidate is the tree as it is.
+	 * @param tree must have no changes since its last commit
+	 * @param spanToUpdateStart
+	 * @param spanToUpdateEnd
+	 * @param pruning
+	 * @return
+	 */
+	public CandidateCursor greedyChanges(ConstituencyTree tree, int spanToUpdateStart, int spanToUpdateEnd, Pruning pruning) {
+		Node toUpdate = tree.getNode(spanToUpdateStart, spanToUpdateEnd);
+		if(toUpdate.parent == null) { // it doesn't really make sense to remove and add back the entire tree
+			CandidateCursor cursor = new CandidateCursor(tree, toUpdate, false);
+			cursor.add();
+			return cursor;
+		}
+		CandidateCursor cursor = new CandidateCursor(tree, toUpdate, true);
+		tryReattachments(tree, toUpdate, pruning, makeRecorder(cursor), new Choice());
+		return cursor;
+	}
+
+	/**
+	 * Make the best change for the span at start to end by scoring its candidates in chunks
+	 * @return false if there weren't enough candidates to split, in which case tree is unchanged
+	 */
+	private boolean makeBestChangeInChunks(ConstituencyTree tree, final int start, final int end, Pruning pruning, CandidateScorer scorer, final ScorerFactory scorerFactory) {
+		CandidateCursor cursor = greedyChanges(tree, start, end, pruning);
+		final int size = cursor.size();
+		final int numberChunks = Math.min(maximumChunks, size / Math.max(minimumChunkSize, 1));
+		if(numberChunks < 2)
+			return false;
+
+		// the copies are made from the spans of the tree and find nodes by where they are, since this thread changes tree while the others score
+		final int[] targetStarts = new int[size];
+		final int[] targetEnds = new int[size];
+		for(int i = 0; i < size; i++) {
+			targetStarts[i] = cursor.attachTo.get(i).start;
+			targetEnds[i] = cursor.attachTo.get(i).end;
+		}
+		final int[] unaryLabels = cursor.unaryLabels.toArray();
+		final int[] labelIds = cursor.labels.toArray();
+		final ParentedSpans committed = tree.getSpans();
+		final double improvementThreshold = moveAcceptance == MoveAcceptance.FIRST_IMPROVEMENT ? scorer.getScore(tree) : Double.POSITIVE_INFINITY;
+
+		final List<CandidateScorer> copyScorers = Collections.synchronizedList(new ArrayList<CandidateScorer>());
+		List<FutureTask<Choice>> tasks = new ArrayList<>();
+		for(int c = 1; c < numberChunks; c++) {
+			final int from = c * size / numberChunks, to = (c + 1) * size / numberChunks;
+			FutureTask<Choice> task = new FutureTask<>(new Callable<Choice>() {
+				@Override
+				public Choice call() {
+					ConstituencyTree copy = new ConstituencyTree(committed.spans, committed.parents, rules);
+					CandidateScorer copyScorer = scorerFactory.makeScorer(copy);
+					copyScorers.add(copyScorer);
+					return scoreCandidates(copy, start, end, targetStarts, targetEnds, unaryLabels, labelIds, from, to, copyScorer, improvementThreshold);
+				}
+			});
+			tasks.add(task);
+			try {
+				executor.execute(task);
 			}
-			
-			if(terminal) {
-				result.add(new Span(index, label));
-				parents.add(parentIndex);
+			catch(RejectedExecutionException e) {} // run below
+		}
+
+		Choice best = scoreCandidates(tree, start, end, targetStarts, targetEnds, unaryLabels, labelIds, 0, size / numberChunks, scorer, improvementThreshold);
+		for(FutureTask<Choice> task : tasks) {
+			task.run(); // does nothing if another thread has started it
+			Choice choice;
+			try {
+				choice = task.get();
 			}
-			else {
-				int index = result.size();
-				result.add(new Span(start, end, left.end, label, left.unaryLabel != -1 ? left.unaryLabel : left.label, right.unaryLabel != -1 ? right.unaryLabel : right.label));
-				parents.add(parentIndex);
-				
-				left.getSpans(result, parents, index);
-				right.getSpans(result, parents, index);
+			catch(InterruptedException | ExecutionException e) {
+				throw new RuntimeException(e);
 			}
+			// same as going through all the candidates in order: ties go to the later one, and nothing after the first improvement counts
+			if(!best.done && choice.found && choice.score >= best.score)
+				best = choice;
 		}
-		
-		private ConstituencyNode getNode(int s, int e) {
-			if(start == s && end == e)
-				return this;
-			else if(s < right.start)
-				return left.getNode(s, e);
-			else
-				return right.getNode(s, e);
-		}
-		
-		public String toString() {
-			if(terminal) {
-				return "{" + index + ":" + label + "}";
-			}
-			else {
-				return "{" + left.toString() + right.toString() + "}";
+		for(CandidateScorer copyScorer : copyScorers)
+			scorerFactory.done(copyScorer);
+
+		makeCandidate(tree, start, end, targetStarts[best.index], targetEnds[best.index], unaryLabels[best.index], labelIds[best.index]);
+		scorer.changeMade(tree);
+		tree.commit();
+		return true;
+	}
+
+	/**
+	 * Score the reattachments from index from up to to, leaving the tree as it was
+	 */
+	private static Choice scoreCandidates(ConstituencyTree tree, int start, int end, int[] targetStarts, int[] targetEnds, int[] unaryLabels, int[] labelIds,
+			int from, int to, CandidateScorer scorer, double improvementThreshold) {
+		Choice best = new Choice();
+		best.improvementThreshold = improvementThreshold;
+		for(int i = from; i < to && !best.done; i++) {
+			int mark = tree.mark();
+			makeCandidate(tree, start, end, targetStarts[i], targetEnds[i], unaryLabels[i], labelIds[i]);
+			double score = scorer.score(tree);
+			tree.undo(mark);
+			if(score >= best.score) {
+				best.found = true;
+				best.score = score;
+				best.index = i;
+				if(score > best.improvementThreshold)
+					best.done = true;
 			}
 		}
+		return best;
 	}
-	
-	private LabelEnumeration labels;
-	private RuleEnumeration rules;
-	
-	public GreedyChange(LabelEnumeration labels, RuleEnumeration rules) {
-		this.labels = labels;
-		this.rules = rules;
+
+	/**
+	 * Move the node at start to end next to the node at targetStart to targetEnd and label their new parent.  tree must have no changes since its last commit.
+	 */
+	private static void makeCandidate(ConstituencyTree tree, int start, int end, int targetStart, int targetEnd, int unaryLabel, int label) {
+		Node toUpdate = tree.getNode(start, end);
+		Node target = tree.getNode(targetStart, targetEnd);
+		tree.detach(toUpdate);
+		tree.attach(toUpdate, target);
+		tree.setLabels(toUpdate.parent, unaryLabel, label);
 	}
-	
+
 	/**
 	 * Iterate over possible labels for the span (or spans if there is a unary rule) that starts at indexStart and goes to indexEnd
 	 * @param spans
@@ -233,17 +414,9 @@ public class GreedyChange {
 	 * @return
 	 */
 	public List<ParentedSpans> makeGreedyLabelChanges(List<Span> spans, int indexStart, int indexEnd, boolean topLevel, Pruning pruning) {
-		List<ParentedSpans> result = new ArrayList<>();
-		
-		ConstituencyNode root = getTree(spans);
-		
-		ConstituencyNode toUpdate = root.getNode(indexStart, indexEnd);
-		
-		iterateLabels(root, toUpdate, result, topLevel, pruning);
-		
-		return result;
+		return toList(greedyLabelChanges(new ConstituencyTree(spans, SpanUtilities.getParents(spans), rules), indexStart, indexEnd, topLevel, pruning));
 	}
-	
+
 	/**
 	 * Returns a list of parse trees (in the form of ParentedSpans) that are all local changes from changing the span at (spanToUpdateStart, spanToUpdateEnd)
 	 * This includes trying to connect this span to the tree differently and iterating over different label values at each location
@@ -253,203 +426,157 @@ public class GreedyChange {
 	 * @return
 	 */
 	public List<ParentedSpans> makeGreedyChanges(List<Span> spans, int spanToUpdateStart, int spanToUpdateEnd, Pruning pruning) {
-		List<ParentedSpans> result = new ArrayList<>();
-		
-		ConstituencyNode root = getTree(spans);
-		
-		ConstituencyNode toUpdate = root.getNode(spanToUpdateStart, spanToUpdateEnd);
-		
-		if(toUpdate.parent == null) {
-			return Arrays.asList(new ParentedSpans(spans, SpanUtilities.getParents(spans))); // it doesn't really make sense to remove and add back the entire tree
-		}
-		
-		if(toUpdate.parent.parent == null) {
-			// one level down from root
-			// remove root and make sibling root
-			if(root.left == toUpdate) {
-				root = root.right;
-				root.parent = null;
-			}
-			else {
-				root = root.left;
-				root.parent = null;
-			}
-		}
-		else {
-			root.remove(toUpdate);
-			root.updateSpanLocations();
-		}
-		List<ConstituencyNode> adjacent = root.getAdjacent(toUpdate);
-		
-		for(ConstituencyNode a : adjacent) {
-			ConstituencyNode newRoot = new ConstituencyNode(root);
-			ConstituencyNode sibling = newRoot.getNode(a.start, a.end);
-			boolean addingToRoot = sibling.parent == null;
-			ConstituencyNode parent = sibling.insertNodeAsSibling(toUpdate);
-			if(addingToRoot) {
-				newRoot = parent;
+		return toList(greedyChanges(new ConstituencyTree(spans, SpanUtilities.getParents(spans), rules), spanToUpdateStart, spanToUpdateEnd, pruning));
+	}
+
+	private static List<ParentedSpans> toList(CandidateCursor cursor) {
+		List<ParentedSpans> result = new ArrayList<>(cursor.size());
+		while(cursor.hasNext())
+			result.add(cursor.next());
+		return result;
+	}
+
+	private static CandidateScorer makeRecorder(final CandidateCursor cursor) {
+		return new CandidateScorer() {
+			@Override
+			public double score(ConstituencyTree tree) {
+				cursor.add();
+				return 0;
 			}
 			
-			newRoot.updateSpanLocations();
+			@Override
+			public double getScore(ConstituencyTree tree) {
+				return 0;
+			}
 			
-			iterateLabels(newRoot, parent, result, false, pruning);
+			@Override
+			public void changeMade(ConstituencyTree tree) {
+			}
+		};
+	}
+
+	/**
+	 * Try connecting toUpdate next to each node it is adjacent to once it is taken out of the tree, with each possible label for its new parent.
+	 * Leaves the tree as it was.
+	 */
+	private void tryReattachments(ConstituencyTree tree, Node toUpdate, Pruning pruning, CandidateScorer scorer, Choice best) {
+		int beforeDetach = tree.mark();
+		tree.detach(toUpdate);
+		int detached = tree.mark();
+		for(Node a : tree.getAdjacent(toUpdate)) {
+			tree.attach(toUpdate, a);
+			tryLabels(tree, toUpdate.parent, false, pruning, scorer, a, best);
+			tree.undo(detached);
+			if(best.done)
+				break;
 		}
-		
-		return result;
+		tree.undo(beforeDetach);
 	}
-	
+
 	/**
-	 * Iterate over possible values of labels for toIterate node.  Puts all possible resulting parses in resultAccumulator.
-	 * @param root
+	 * Iterate over possible values of labels for toIterate node, scoring each one.  Leaves the tree as it was.
+	 * @param tree
 	 * @param toIterate
-	 * @param resultAccumulator
 	 * @param topLevel
+	 * @param pruning
+	 * @param scorer
+	 * @param attachTo recorded in best if one of these options is the best so far
+	 * @param best updated if an option scores at least as well as the best so far
 	 */
-	void iterateLabels(ConstituencyNode root, ConstituencyNode toIterate, List<ParentedSpans> resultAccumulator, boolean topLevel, Pruning pruning) {
+	private void tryLabels(ConstituencyTree tree, Node toIterate, boolean topLevel, Pruning pruning, CandidateScorer scorer, Node attachTo, Choice best) {
 		Set<Integer> topLevelLabels = labels.getTopLevelLabelIds();
+		int start = toIterate.start, end = toIterate.end;
 		
-		// iterate with no unary labels
-		toIterate.unaryLabel = -1; // -1 indicates no unary
-		toIterate.label = -2; // using -2 as a marker to find this span
-		ParentedSpans spans = root.getSpans();
-		int spanToIterateIndex = -1;
-		Span spanToIterate = null;
-		for(int i = 0; i < spans.spans.size(); i++){
-			if(spans.spans.get(i).getRule().getLabel() == -2) {
-				spanToIterateIndex = i;
-				spanToIterate = spans.spans.get(i);
+		// labels that keep the node's own rule and its parent's rule valid, in increasing order; null if any label does
+		int[] innerLabels = toIterate.terminal ? null : rules.getLabelsWithChildren(toIterate.left.getOuterLabel(), toIterate.right.getOuterLabel());
+		int[] outerLabels = null;
+		int[] unaryRules = null; // null to go through all unary rules
+		Node parent = toIterate.parent;
+		if(parent != null) {
+			if(parent.left == toIterate) {
+				outerLabels = rules.getLeftChildLabels(parent.label, parent.right.getOuterLabel());
+				unaryRules = rules.getUnaryRulesAsLeftChild(parent.label, parent.right.getOuterLabel());
+			}
+			else {
+				outerLabels = rules.getRightChildLabels(parent.label, parent.left.getOuterLabel());
+				unaryRules = rules.getUnaryRulesAsRightChild(parent.label, parent.left.getOuterLabel());
 			}
 		}
-		int parentIndex = spans.parents[spanToIterateIndex];
-		Span parent = null;
-		boolean leftChild = true;
-		if(parentIndex != -1) {
-			parent = spans.spans.get(parentIndex);
-			leftChild = parent.getRule().getLeft() == -2;
-		}
-		for(int i = 0; i < labels.getNumberOfLabels(); i++) {
-			if(topLevel && !topLevelLabels.contains(i))
-				continue;
-			
-			if(pruning.isPruned(spanToIterate.getStart(), spanToIterate.getEnd(), i))
-				continue;
-			
-			Span newToIterate = spanToIterate.changeLabel(i);
-			if(!rules.isExistingRule(newToIterate.getRule()))
-				continue;
-			List<Span> newSpans = new ArrayList<>(spans.spans);
-			newSpans.set(spanToIterateIndex, newToIterate);
-			if(parentIndex != -1) {
-				Span newParent = parent.changeChildLabel(leftChild, i);
-				if(!rules.isExistingRule(newParent.getRule()))
+
+		// iterate with no unary labels
+		int[] candidates = innerLabels == null || (outerLabels != null && outerLabels.length < innerLabels.length) ? outerLabels : innerLabels;
+		if(candidates == null) {
+			for(int i = pruning.nextAllowedLabel(start, end, 0); i != -1 && !best.done; i = pruning.nextAllowedLabel(start, end, i + 1)) {
+				if(topLevel && !topLevelLabels.contains(i))
 					continue;
-				newSpans.set(parentIndex, newParent);
+				tryOption(tree, toIterate, -1, i, scorer, attachTo, best);
 			}
-			
-			SpanUtilities.connectChildren(newSpans, spans.parents);
-			resultAccumulator.add(new ParentedSpans(newSpans, spans.parents));
 		}
-		
-		// iterate unary combinations
-		toIterate.unaryLabel = -2; // using -2 as a marker to find this span
-		toIterate.label = -3; // using -3 as a marker to find this span
-		spans = root.getSpans();
-		spanToIterateIndex = -1;
-		spanToIterate = null;
-		for(int i = 0; i < spans.spans.size(); i++){
-			if(spans.spans.get(i).getRule().getLabel() == -3) {
-				spanToIterateIndex = i;
-				spanToIterate = spans.spans.get(i);
+		else {
+			for(int c = 0; c < candidates.length && !best.done; c++) {
+				int i = candidates[c];
+				if(pruning.isPruned(start, end, i))
+					continue;
+				if(topLevel && !topLevelLabels.contains(i))
+					continue;
+				if(!isExistingRule(toIterate, i) || !isExistingParentRule(toIterate, i))
+					continue;
+
+				tryOption(tree, toIterate, -1, i, scorer, attachTo, best);
 			}
 		}
-		int unaryIndex = spans.parents[spanToIterateIndex];
-		Span unary = spans.spans.get(unaryIndex);
-		parentIndex = spans.parents[unaryIndex];
-		if(parentIndex != -1) {
-			parent = spans.spans.get(parentIndex);
-			leftChild = parent.getRule().getLeft() == -2;
-		}
-		for(int i = 0; i < rules.getNumberOfUnaryRules(); i++) {
-			Rule rule = rules.getUnaryRule(i);
+
+		// iterate unary combinations
+		int numberUnaries = unaryRules == null ? rules.getNumberOfUnaryRules() : unaryRules.length;
+		for(int u = 0; u < numberUnaries && !best.done; u++) {
+			Rule rule = rules.getUnaryRule(unaryRules == null ? u : unaryRules[u]);
 			if(topLevel && !topLevelLabels.contains(rule.getLabel()))
 				continue;
-			
-			if(pruning.isPruned(spanToIterate.getStart(), spanToIterate.getEnd(), rule.getLabel()) || pruning.isPruned(spanToIterate.getStart(), spanToIterate.getEnd(), rule.getLeft()))
-				continue;
 
-			Span newToIterate = spanToIterate.changeLabel(rule.getLeft());
-			if(!rules.isExistingRule(newToIterate.getRule()))
+			if(pruning.isPruned(start, end, rule.getLabel()) || pruning.isPruned(start, end, rule.getLeft()))
 				continue;
-			Span newUnary = unary.changeChildLabel(true, rule.getLeft()).changeLabel(rule.getLabel());
-			List<Span> newSpans = new ArrayList<>(spans.spans);
-			newSpans.set(spanToIterateIndex, newToIterate);
-			newSpans.set(unaryIndex, newUnary);
-			if(parentIndex != -1) {
-				Span newParent = parent.changeChildLabel(leftChild, rule.getLabel());
-				if(!rules.isExistingRule(newParent.getRule()))
-					continue;
-				newSpans.set(parentIndex, newParent);
-			}
-			
-			SpanUtilities.connectChildren(newSpans, spans.parents);
-			resultAccumulator.add(new ParentedSpans(newSpans, spans.parents));
+			if(!isExistingRule(toIterate, rule.getLeft()) || !isExistingParentRule(toIterate, rule.getLabel()))
+				continue;
+
+			tryOption(tree, toIterate, rule.getLabel(), rule.getLeft(), scorer, attachTo, best);
 		}
 	}
-	
+
+	private void tryOption(ConstituencyTree tree, Node toIterate, int unaryLabel, int label, CandidateScorer scorer, Node attachTo, Choice best) {
+		int mark = tree.mark();
+		tree.setLabels(toIterate, unaryLabel, label);
+		double score = scorer.score(tree);
+		tree.undo(mark);
+		if(score >= best.score) {
+			best.found = true;
+			best.score = score;
+			best.attachTo = attachTo;
+			best.unaryLabel = unaryLabel;
+			best.label = label;
+			if(score > best.improvementThreshold)
+				best.done = true;
+		}
+	}
+
 	/**
-	 * Converts list of Span representation to ConstituencyNode representation.  Used before doing greedy updates.
-	 * @param spans
-	 * @return
+	 * If the rule for node is valid when node has label (below any unary)
 	 */
-	private static ConstituencyNode getTree(List<Span> spans) {
-		int[] parents = SpanUtilities.getParents(spans);
-		
-		ConstituencyNode[] nodes = new ConstituencyNode[spans.size()];
-		for(int i = 0; i < spans.size(); i++) {
-			Rule rule = spans.get(i).getRule();
-			if(rule.getType() == Type.UNARY) // we are going to merge the unaries with the node below them
-				continue;
-			else {
-				ConstituencyNode node = new ConstituencyNode();
-				if(rule.getType() == Type.TERMINAL) {
-					node.terminal = true;
-					node.index = spans.get(i).getStart();
-				}
-				node.label = rule.getLabel();
-				nodes[i] = node;
-				int pi = parents[i];
-				if(pi != -1) {
-					Span parent = spans.get(pi);
-					if(parent.getRule().getType() == Type.UNARY) {
-						nodes[pi] = node;
-						node.unaryLabel = parent.getRule().getLabel();
-					}
-				}
-			}
-		}
-		ConstituencyNode root = null;
-		for(int i = 0; i < spans.size(); i++) {
-			int pi = parents[i];
-			if(pi != -1) {
-				if(spans.get(pi).getRule().getType() == Type.UNARY) {
-					continue; // we will handle this one when we get to the unary
-				}
-				
-				nodes[i].parent = nodes[pi];
-				
-				if(spans.get(i).getStart() < spans.get(pi).getSplit())
-					nodes[pi].left = nodes[i];
-				else
-					nodes[pi].right = nodes[i];
-			}
-			else {
-				root = nodes[i];
-			}
-		}
-		
-		root.updateSpanLocations();
-		return root;
+	private boolean isExistingRule(Node node, int label) {
+		if(node.terminal) // all terminals are existing
+			return true;
+		return rules.getBinaryId(label, node.left.getOuterLabel(), node.right.getOuterLabel()) != -1;
+	}
+
+	/**
+	 * If the rule for the parent of node is valid when the label seen by the parent is outerLabel
+	 */
+	private boolean isExistingParentRule(Node node, int outerLabel) {
+		Node parent = node.parent;
+		if(parent == null)
+			return true;
+		if(parent.left == node)
+			return rules.getBinaryId(parent.label, outerLabel, parent.right.getOuterLabel()) != -1;
+		else
+			return rules.getBinaryId(parent.label, parent.left.getOuterLabel(), outerLabel) != -1;
 	}
-	
-	
 }
@@ -0,0 +1,259 @@
+package constituencyParser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Holds the packed chart (hypergraph) explored by DiscriminativeCKYDecoder and extracts the k best trees from it
+ * using lazy k-best extraction, Algorithm 3 from Better k-best Parsing, Liang Huang and David Chiang, IWPT 05.
+ *
+ * There are two nodes for each start, end, and label: one before unaries, which has binary and terminal edges coming in,
+ * and one after unaries, which has unary edges and an edge from the node before unaries with the same label coming in.
+ */
+class KBestChart {
+	private enum EdgeType {
+		TERMINAL,
+		BINARY,
+		UNARY,
+		NO_UNARY, // from a node before unaries to the node after unaries with the same label, doesn't add a span
+		TOP // from a top level node after unaries to the root, doesn't add a span
+	}
+
+	private static class Edge {
+		EdgeType type;
+		Node head;
+		Node[] children;
+		Rule rule;
+		int split;
+		double score; // score of the edge not including the children
+
+		Edge(EdgeType type, Node head, Node[] children, Rule rule, int split, double score) {
+			this.type = type;
+			this.head = head;
+			this.children = children;
+			this.rule = rule;
+			this.split = split;
+			this.score = score;
+		}
+	}
+
+	/**
+	 * An edge along with the rank of the derivation used for each child
+	 */
+	private static class Derivation implements Comparable<Derivation> {
+		Edge edge;
+		int[] ranks;
+		double score;
+
+		Derivation(Edge edge, int[] ranks, double score) {
+			this.edge = edge;
+			this.ranks = ranks;
+			this.score = score;
+		}
+
+		@Override
+		public int compareTo(Derivation other) {
+			return Double.compare(other.score, score); // best first
+		}
+
+		@Override
+		public boolean equals(Object other) {
+			if(other instanceof Derivation) {
+				Derivation d = (Derivation)other;
+				return d.edge == edge && Arrays.equals(d.ranks, ranks);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(edge) * 31 + Arrays.hashCode(ranks);
+		}
+	}
+
+	private static class Node {
+		int start;
+		int end;
+		int label;
+
+		List<Edge> edges = new ArrayList<>();
+		List<Derivation> best = new ArrayList<>(); // derivations found so far, best first
+		PriorityQueue<Derivation> candidates; // null until the node is first visited
+		Set<Derivation> candidatesSeen;
+
+		Node(int start, int end, int label) {
+			this.start = start;
+			this.end = end;
+			this.label = label;
+		}
+	}
+
+	int wordsSize;
+	int labelsSize;
+	Node[] beforeUnaries; // indexed by TriangularChart.cellIndex * labelsSize + label, null until a node is needed
+	Node[] afterUnaries;
+	Node root;
+
+	public KBestChart(int wordsSize, int labelsSize) {
+		this.wordsSize = wordsSize;
+		this.labelsSize = labelsSize;
+		beforeUnaries = new Node[TriangularChart.numberOfCells(wordsSize) * labelsSize];
+		afterUnaries = new Node[TriangularChart.numberOfCells(wordsSize) * labelsSize];
+		root = new Node(0, wordsSize, -1);
+	}
+
+	private Node getNode(Node[] nodes, int start, int end, int label) {
+		int index = TriangularChart.cellIndex(wordsSize, start, end) * labelsSize + label;
+		Node node = nodes[index];
+		if(node == null) {
+			node = new Node(start, end, label);
+			nodes[index] = node;
+		}
+		return node;
+	}
+
+	public void addTerminal(int position, int label, double score) {
+		Node head = getNode(beforeUnaries, position, position+1, label);
+		head.edges.add(new Edge(EdgeType.TERMINAL, head, new Node[0], null, 0, score));
+	}
+
+	/**
+	 * @param split absolute position
+	 * @param score the score of the span, not including its children
+	 */
+	public void addBinary(int start, int end, int split, Rule rule, double score) {
+		Node head = getNode(beforeUnaries, start, end, rule.getLabel());
+		Node[] children = new Node[] {getNode(afterUnaries, start, split, rule.getLeft()), getNode(afterUnaries, split, end, rule.getRight())};
+		head.edges.add(new Edge(EdgeType.BINARY, head, children, rule, split, score));
+	}
+
+	/**
+	 * @param score the score of the span, not including its child
+	 */
+	public void addUnary(int start, int end, Rule rule, double score) {
+		Node head = getNode(afterUnaries, start, end, rule.getLabel());
+		Node[] children = new Node[] {getNode(beforeUnaries, start, end, rule.getLeft())};
+		head.edges.add(new Edge(EdgeType.UNARY, head, children, rule, 0, score));
+	}
+
+	/**
+	 * Allow the span at start, end with label to not have a unary above it
+	 */
+	public void addNoUnary(int start, int end, int label) {
+		Node head = getNode(afterUnaries, start, end, label);
+		Node[] children = new Node[] {getNode(beforeUnaries, start, end, label)};
+		head.edges.add(new Edge(EdgeType.NO_UNARY, head, children, null, 0, 0));
+	}
+
+	public void addTopLevel(int label) {
+		Node[] children = new Node[] {getNode(afterUnaries, 0, wordsSize, label)};
+		root.edges.add(new Edge(EdgeType.TOP, root, children, null, 0, 0));
+	}
+
+	/**
+	 * Get up to k best trees, best first
+	 * @param k
+	 * @param scoresAccumulator the score of each tree is added to this if it is not null
+	 * @return
+	 */
+	public List<List<Span>> getKBest(int k, List<Double> scoresAccumulator) {
+		lazyKthBest(root, k);
+		List<List<Span>> result = new ArrayList<>();
+		for(Derivation d : root.best) {
+			List<Span> spans = new ArrayList<>();
+			getSpans(d, spans);
+			result.add(spans);
+			if(scoresAccumulator != null)
+				scoresAccumulator.add(d.score);
+		}
+		return result;
+	}
+
+	/**
+	 * Make sure the k best derivations of node have been found, if there are that many
+	 * @param node
+	 * @param k
+	 */
+	private void lazyKthBest(Node node, int k) {
+		if(node.candidates == null) {
+			node.candidates = new PriorityQueue<>();
+			node.candidatesSeen = new HashSet<>();
+			for(Edge edge : node.edges) {
+				Derivation d = makeDerivation(edge, new int[edge.children.length]);
+				if(d != null && node.candidatesSeen.add(d))
+					node.candidates.add(d);
+			}
+			if(!node.candidates.isEmpty())
+				node.best.add(node.candidates.poll());
+		}
+
+		while(node.best.size() < k && node.best.size() > 0) {
+			Derivation last = node.best.get(node.best.size() - 1);
+			lazyNext(node, last);
+			if(node.candidates.isEmpty())
+				break;
+			node.best.add(node.candidates.poll());
+		}
+	}
+
+	/**
+	 * Add the neighbors of derivation to the candidates of node
+	 */
+	private void lazyNext(Node node, Derivation derivation) {
+		for(int i = 0; i < derivation.ranks.length; i++) {
+			int[] ranks = Arrays.copyOf(derivation.ranks, derivation.ranks.length);
+			ranks[i]++;
+			Derivation d = makeDerivation(derivation.edge, ranks);
+			if(d != null && node.candidatesSeen.add(d))
+				node.candidates.add(d);
+		}
+	}
+
+	/**
+	 * Returns null if one of the children doesn't have a derivation of the rank needed
+	 */
+	private Derivation makeDerivation(Edge edge, int[] ranks) {
+		double score = edge.score;
+		for(int i = 0; i < ranks.length; i++) {
+			Node child = edge.children[i];
+			lazyKthBest(child, ranks[i] + 1);
+			if(child.best.size() <= ranks[i])
+				return null;
+			score += child.best.get(ranks[i]).score;
+		}
+		return new Derivation(edge, ranks, score);
+	}
+
+	/**
+	 * Adds the spans of derivation to resultAccumulator, parents before their children
+	 * @return the top span of the derivation
+	 */
+	private Span getSpans(Derivation derivation, List<Span> resultAccumulator) {
+		Edge edge = derivation.edge;
+		Node head = edge.head;
+		Span span;
+		switch(edge.type) {
+		case TERMINAL:
+			span = new Span(head.start, head.label);
+			resultAccumulator.add(span);
+			return span;
+		case BINARY:
+			span = new Span(head.start, head.end, edge.split, edge.rule);
+			resultAccumulator.add(span);
+			span.setLeft(getSpans(edge.children[0].best.get(derivation.ranks[0]), resultAccumulator));
+			span.setRight(getSpans(edge.children[1].best.get(derivation.ranks[1]), resultAccumulator));
+			return span;
+		case UNARY:
+			span = new Span(head.start, head.end, edge.rule);
+			resultAccumulator.add(span);
+			span.setLeft(getSpans(edge.children[0].best.get(derivation.ranks[0]), resultAccumulator));
+			return span;
+		default: // NO_UNARY and TOP
+			return getSpans(edge.children[0].best.get(derivation.ranks[0]), resultAccumulator);
+		}
+	}
+}
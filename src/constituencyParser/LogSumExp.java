@@ -0,0 +1,62 @@
+package constituencyParser;
+
+/**
+ * Adds probabilities stored as logs: returns ln(exp(x)+exp(y)).
+ * The fast version reads log(1+exp(-d)) from a table with linear interpolation instead of calling Math.log and Math.exp.
+ * Its absolute error is below 1e-7, which is far smaller than the differences between scores that matter when sampling.
+ */
+public class LogSumExp {
+	private static final double TABLE_MAX = 20; // log(1+exp(-20)) is about 2e-9, so beyond this the smaller value is dropped
+	private static final int STEPS_PER_UNIT = 1024;
+	private static final double[] TABLE = new double[(int)(TABLE_MAX * STEPS_PER_UNIT) + 2];
+	static {
+		for(int i = 0; i < TABLE.length; i++) {
+			TABLE[i] = Math.log1p(Math.exp(-(double)i / STEPS_PER_UNIT));
+		}
+	}
+	
+	public static double add(double x, double y) {
+		if(x == Double.NEGATIVE_INFINITY)
+			return y;
+		if(y == Double.NEGATIVE_INFINITY)
+			return x;
+		
+		double larger;
+		double smaller;
+		if(x > y) {
+			larger = x;
+			smaller = y;
+		}
+		else {
+			larger = y;
+			smaller = x;
+		}
+		
+		return larger + Math.log(1 + Math.exp(smaller - larger));
+	}
+	
+	public static double addFast(double x, double y) {
+		if(x == Double.NEGATIVE_INFINITY)
+			return y;
+		if(y == Double.NEGATIVE_INFINITY)
+			return x;
+		
+		double larger;
+		double difference;
+		if(x > y) {
+			larger = x;
+			difference = x - y;
+		}
+		else {
+			larger = y;
+			difference = y - x;
+		}
+		if(difference >= TABLE_MAX)
+			return larger;
+		
+		double position = difference * STEPS_PER_UNIT;
+		int index = (int)position;
+		double fraction = position - index;
+		return larger + TABLE[index] + fraction * (TABLE[index+1] - TABLE[index]);
+	}
+}
@@ -1,37 +1,108 @@
 package constituencyParser;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * The labels not allowed for each span.  Stored as a bitset with the cells laid out like TriangularChart (only start < end),
+ * and each cell taking a whole number of longs so the labels of a cell can be scanned a word at a time.
+ */
 public class Pruning {
-	boolean[][][] prune;
+	int numWords;
+	int numLabels;
+	int wordsPerCell;
+	long[] prune; // a set bit means pruned
 	
 	public Pruning(int numWords, int numLabels) {
-		prune = new boolean[numWords][numWords+1][numLabels];
+		reset(numWords, numLabels);
+	}
+	
+	public Pruning(Pruning other) {
+		numWords = other.numWords;
+		numLabels = other.numLabels;
+		wordsPerCell = other.wordsPerCell;
+		prune = Arrays.copyOf(other.prune, TriangularChart.numberOfCells(numWords) * wordsPerCell);
+	}
+	
+	/**
+	 * Clear everything and set the size for a new sentence, reusing the bitset if it is big enough
+	 */
+	public void reset(int numWords, int numLabels) {
+		this.numWords = numWords;
+		this.numLabels = numLabels;
+		wordsPerCell = (numLabels + 63) >>> 6;
+		int size = TriangularChart.numberOfCells(numWords) * wordsPerCell;
+		if(prune == null || prune.length < size)
+			prune = new long[size];
+		else
+			Arrays.fill(prune, 0, size, 0L);
+	}
+	
+	/**
+	 * Also prune everything pruned by other, which must be for the same sentence
+	 */
+	public void add(Pruning other) {
+		int size = TriangularChart.numberOfCells(numWords) * wordsPerCell;
+		for(int i = 0; i < size; i++)
+			prune[i] |= other.prune[i];
+	}
+	
+	private int cellOffset(int start, int end) {
+		return TriangularChart.cellIndex(numWords, start, end) * wordsPerCell;
 	}
 	
 	public void prune(int start, int end, int label) {
-		prune[start][end][label] = true;
+		prune[cellOffset(start, end) + (label >>> 6)] |= 1L << label;
 	}
 	
 	public boolean isPruned(int start, int end, int label) {
-		return prune[start][end][label];
+		return (prune[cellOffset(start, end) + (label >>> 6)] & (1L << label)) != 0;
 	}
 	
-	public int countPruned() {
-		int count = 0;
-		for(boolean[][] a : prune) {
-			for(boolean[] b : a) {
-				for(boolean p : b) {
-					if(p)
-						count++;
-				}
+	/**
+	 * The first label, starting at fromLabel, that is not pruned for start, end
+	 * @return -1 if there is none
+	 */
+	public int nextAllowedLabel(int start, int end, int fromLabel) {
+		if(fromLabel >= numLabels)
+			return -1;
+		int offset = cellOffset(start, end);
+		int word = fromLabel >>> 6;
+		long allowed = ~prune[offset + word] & (-1L << fromLabel);
+		while(true) {
+			if(allowed != 0) {
+				int label = (word << 6) + Long.numberOfTrailingZeros(allowed);
+				return label < numLabels ? label : -1;
 			}
+			word++;
+			if(word == wordsPerCell)
+				return -1;
+			allowed = ~prune[offset + word];
 		}
+	}
+	
+	/**
+	 * Number of labels not pruned for start, end
+	 */
+	public int countAllowed(int start, int end) {
+		int offset = cellOffset(start, end);
+		int pruned = 0;
+		for(int i = 0; i < wordsPerCell; i++)
+			pruned += Long.bitCount(prune[offset + i]);
+		return numLabels - pruned;
+	}
+	
+	public int countPruned() {
+		int count = 0;
+		int size = TriangularChart.numberOfCells(numWords) * wordsPerCell;
+		for(int i = 0; i < size; i++)
+			count += Long.bitCount(prune[i]);
 		return count;
 	}
 	
 	public boolean containsPruned(List<Span> spans) {
-		for(Span s : spans) {
+		for(int i = 0; i < spans.size(); i++) {
+			Span s = spans.get(i);
 			if(isPruned(s.getStart(), s.getEnd(), s.getRule().getLabel()))
 				return true;
 		}
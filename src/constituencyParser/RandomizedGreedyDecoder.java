@@ -3,15 +3,13 @@ package constituencyParser;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.SplittableRandom;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 
 import constituencyParser.GreedyChange.ParentedSpans;
 import constituencyParser.Rule.Type;
@@ -23,6 +21,8 @@ import constituencyParser.features.FirstOrderFeatureHolder;
  * Samples parse trees then makes greedy updates on them
  */
 public class RandomizedGreedyDecoder implements Decoder {
+	private static final int FALLBACK_SAMPLES = 10; // number of samples to choose from when no random restart finished before the deadline
+	
 	DiscriminativeCKYSampler sampler;
 	
 	WordEnumeration wordEnum;
@@ -34,11 +34,11 @@ public class RandomizedGreedyDecoder implements Decoder {
 	FirstOrderFeatureHolder firstOrderFeatures;
 	Pruning pruning;
 	
-	Set<Set<Span>> alreadySeenSpans;
+	ConcurrentLongSet alreadySeenTrees = new ConcurrentLongSet(); // ConstituencyTree.getHash of the trees we have greedy updated, so if we reach the same tree again, we can stop
 	
 	DecoderTask[] decoderTasks;
 	ExecutorService executorService;
-	ExecutorCompletionService<List<Span>> completionService;
+	boolean ownsExecutor; // if true, close shuts down executorService
 	
 	boolean doSecondOrder = true;
 	
@@ -47,23 +47,52 @@ public class RandomizedGreedyDecoder implements Decoder {
 	int[][] goldUnaryLabels;
 	
 	int numberSampleIterations = 50;
+	RestartPolicy restartPolicy; // null to always do numberSampleIterations restarts
+	
+	SplittableRandom seedRandom; // null unless a seed was set
+	SplittableRandom sentenceRandom; // each random restart splits its own generator from this
+	
+	DiscriminativeCKYDecoder kBestDecoder; // shares firstOrderFeatures
+	int numberKBestSeeds = 0;
+	List<List<Span>> kBestSeeds;
+	
+	double posteriorPruningThreshold = 0;
+	boolean prioritizeUncertainSpans = false;
+	int candidateChunkSize = 64;
 	
+	/**
+	 * @param threads number of threads used for the random restarts of a sentence; the decoder makes its own pool if this is more than one
+	 */
 	public RandomizedGreedyDecoder(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, int threads) {
+		this(words, labels, rules, threads > 1 ? DecoderExecutors.newFixedThreadPool(threads) : null, threads);
+		ownsExecutor = true;
+	}
+	
+	/**
+	 * Runs the random restarts on executor, which may be shared with other decoders and is not shut down by close.
+	 * The thread calling decode runs restarts too, along with any tasks the executor hasn't started, so decode finishes even if every thread of executor is busy.
+	 * @param executor null to run the random restarts on the thread that calls decode
+	 * @param tasks number of tasks doing random restarts at once for a sentence, ignored if executor is null
+	 */
+	public RandomizedGreedyDecoder(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, ExecutorService executor, int tasks) {
 		this.wordEnum = words;
 		this.labels = labels;
 		this.rules = rules;
 		
 		firstOrderFeatures = new FirstOrderFeatureHolder(words, labels, rules);
 		sampler = new DiscriminativeCKYSampler(words, labels, rules, firstOrderFeatures);
+		kBestDecoder = new DiscriminativeCKYDecoder(words, labels, rules, firstOrderFeatures);
 		
 		this.greedyChange = new GreedyChange(labels, rules);
 		
-		executorService = Executors.newFixedThreadPool(threads);
-		completionService = new ExecutorCompletionService<>(executorService);
-		decoderTasks = new DecoderTask[threads];
-		for(int i = 0; i < threads; i++) {
+		executorService = executor;
+		if(executor == null)
+			tasks = 1;
+		decoderTasks = new DecoderTask[tasks];
+		for(int i = 0; i < tasks; i++) {
 			decoderTasks[i] = new DecoderTask();
 		}
+		setCandidateChunkSize(candidateChunkSize);
 	}
 	
 	/**
@@ -86,6 +115,7 @@ public class RandomizedGreedyDecoder implements Decoder {
 	 */
 	public void setCostAugmenting(boolean costAugmenting, SpannedWords gold) {
 		this.costAugmenting = costAugmenting;
+		kBestDecoder.setCostAugmenting(costAugmenting, gold);
 		if(!costAugmenting)
 			return;
 		int size = gold.getWords().size();
@@ -114,39 +144,251 @@ public class RandomizedGreedyDecoder implements Decoder {
 		numberSampleIterations = iterations;
 	}
 	
+	/**
+	 * Stop the random restarts for a sentence early once they stop finding better trees, see RestartPolicy.
+	 * When threads > 1 the number of restarts depends on timing, so decoding is not repeatable even with setSeed.
+	 * @param policy null to always do the number of restarts set by setNumberSampleIterations
+	 */
+	public void setRestartPolicy(RestartPolicy policy) {
+		restartPolicy = policy;
+	}
+	
+	/**
+	 * Number of random restarts started for the last sentence decoded
+	 * @return
+	 */
+	public int getLastNumberRestarts() {
+		return numberIterationsStarted;
+	}
+	
+	/**
+	 * Number of candidate trees scored by greedy changes for the last sentence decoded, over all restarts
+	 * @return
+	 */
+	public long getLastNumberCandidatesScored() {
+		return numberCandidatesScored;
+	}
+	
+	/**
+	 * Keep the best greedy change for each span (the default), or the first one found that improves the score
+	 * @param moveAcceptance
+	 */
+	public void setMoveAcceptance(GreedyChange.MoveAcceptance moveAcceptance) {
+		greedyChange.setMoveAcceptance(moveAcceptance);
+	}
+	
+	/**
+	 * Try changes for the spans with the lowest first order posterior probability first instead of going through spans by length.
+	 * Runs the sampler's outside pass for each sentence to get the posteriors.
+	 * @param prioritizeUncertainSpans
+	 */
+	public void setPrioritizeUncertainSpans(boolean prioritizeUncertainSpans) {
+		this.prioritizeUncertainSpans = prioritizeUncertainSpans;
+	}
+	
+	/**
+	 * With second order features, greedy steps with at least twice this many candidates have their candidates scored in chunks of at least this size
+	 * on the decoder's executor, so a sentence can use more threads than it has restarts running.  Has no effect if there is no executor.
+	 * @param candidateChunkSize 0 to always score on the thread doing the restart
+	 */
+	public void setCandidateChunkSize(int candidateChunkSize) {
+		this.candidateChunkSize = candidateChunkSize;
+		if(executorService != null && candidateChunkSize > 0)
+			greedyChange.setParallelScoring(executorService, decoderTasks.length, candidateChunkSize);
+		else
+			greedyChange.setParallelScoring(null, 0, 0);
+	}
+	
+	/**
+	 * Makes decoding repeatable.  Each random restart gets its own generator split from this seed in restart order,
+	 * so the samples for each restart are the same for any number of threads.
+	 * @param seed
+	 */
+	public void setSeed(long seed) {
+		seedRandom = new SplittableRandom(seed);
+	}
+	
+	private SplittableRandom newSentenceRandom() {
+		if(seedRandom != null)
+			return seedRandom.split();
+		else
+			return new SplittableRandom();
+	}
+	
+	/**
+	 * Start the first k random restarts from the k best first order trees instead of from samples.
+	 * Seeds that use spans the sampler pruned are replaced by samples.
+	 * @param k
+	 */
+	public void setNumberKBestSeeds(int k) {
+		numberKBestSeeds = k;
+	}
+	
+	/**
+	 * Use a table lookup when adding probabilities in the sampler, see DiscriminativeCKYSampler.setFastLogAdd
+	 * @param fastLogAdd
+	 */
+	public void setFastLogAdd(boolean fastLogAdd) {
+		sampler.setFastLogAdd(fastLogAdd);
+	}
+	
+	/**
+	 * Store the sampler's charts as floats, see DiscriminativeCKYSampler.setFloatCharts
+	 * @param floatCharts
+	 */
+	public void setFloatCharts(boolean floatCharts) {
+		sampler.setFloatCharts(floatCharts);
+	}
+	
+	/**
+	 * Prune every span whose first order posterior probability is below threshold before sampling.
+	 * This is much tighter than the default pruning, which only compares inside scores within a cell.
+	 * @param threshold 0 to turn off posterior pruning
+	 */
+	public void setPosteriorPruningThreshold(double threshold) {
+		posteriorPruningThreshold = threshold;
+	}
+	
 	List<Word> words;
 	FeatureParameters params;
 	int numberIterationsStarted = 0;
+	long numberCandidatesScored = 0;
+	int maximumRestarts;
+	double bestRestartScore; // best score of a finished restart
+	int restartsSinceImprovement; // number of restarts finished since bestRestartScore last went up
 	Object lockObject = new Object();
 	
+	boolean decoding; // true while restarts for a sentence may still be started, so help can join in
+	int activeHelpers; // threads inside help
+	List<ParentedSpans> helperResults = new ArrayList<>(); // best tree found by each call to help
+	
+	long deadline; // in System.nanoTime() units
+	boolean hasDeadline;
+	CancellationToken cancellationToken;
+	volatile boolean truncated;
+	
 	@Override
 	/**
 	 * Returns a parse tree in the form of a list of spans
 	 */
 	public List<Span> decode(List<Word> words, FeatureParameters params) {
+		return decode(words, params, -1, null);
+	}
+	
+	/**
+	 * Returns a parse tree in the form of a list of spans, stopping the random restarts early when the time runs out or token is cancelled.
+	 * The best tree found so far is returned, and wasLastDecodeTruncated tells if the restarts were stopped early.
+	 * If no restart finished, the best of a few samples is returned.
+	 * @param words
+	 * @param params
+	 * @param timeoutMillis time allowed for the decode, negative for no limit
+	 * @param token can be null
+	 * @return
+	 */
+	public List<Span> decode(List<Word> words, FeatureParameters params, long timeoutMillis, CancellationToken token) {
+		hasDeadline = timeoutMillis >= 0;
+		deadline = System.nanoTime() + timeoutMillis * 1000000L;
+		cancellationToken = token;
+		truncated = false;
+		
 		this.words = words;
 		this.params = params;
 		numberIterationsStarted = 0;
+		numberCandidatesScored = 0;
+		maximumRestarts = restartPolicy == null ? numberSampleIterations : restartPolicy.getMaximumRestarts(words.size());
+		bestRestartScore = Double.NEGATIVE_INFINITY;
+		restartsSinceImprovement = 0;
+		sentenceRandom = newSentenceRandom();
 		
 		firstOrderFeatures.fillScoreArrays(words, params);
 		
 		sampler.setCostAugmenting(costAugmenting, goldLabels, goldUnaryLabels);
 		
+		// the inside pass is always done since the fallback samples from it, but once time is up the other passes are skipped
 		pruning = sampler.calculateProbabilities(words);
+		if(posteriorPruningThreshold > 0 && !shouldStop()) {
+			sampler.calculateOutsideProbabilities();
+			pruning = sampler.calculateProbabilities(words, sampler.makePosteriorPruning(posteriorPruningThreshold));
+			if(!sampler.canSample()) // threshold too high for this sentence
+				pruning = sampler.calculateProbabilities(words);
+		}
+		if(prioritizeUncertainSpans && !shouldStop())
+			sampler.calculateOutsideProbabilities(); // for getSpansByPosterior
 		
 		//System.out.println("calculated probabilities");
 		
-		alreadySeenSpans = Collections.newSetFromMap(new ConcurrentHashMap<Set<Span>, Boolean>()); // a set of the spans we have sampled so if we sample the same again, we don't have to greedy update
+		if(numberKBestSeeds > 0 && !shouldStop())
+			kBestSeeds = kBestDecoder.decodeKBest(words, params, numberKBestSeeds);
+		else
+			kBestSeeds = new ArrayList<>();
 		
-		for(DecoderTask task : decoderTasks) {
-			completionService.submit(task);
-		}
+		alreadySeenTrees.clear();
+		
+		List<ParentedSpans> results = new ArrayList<>();
+		if(!shouldStop())
+			runRestarts(results);
 		
 		List<ParentedSpans> bestOptions = new ArrayList<>();
-		for(int i = 0; i < decoderTasks.length; i++) {
+		for(ParentedSpans result : results) {
+			if(result.spans.size() > 0) // empty if the task didn't finish a restart
+				bestOptions.add(result);
+		}
+		
+		if(bestOptions.size() == 0) {
+			// once time is up, only sample until there is a tree to return
+			for(int i = 0; i < FALLBACK_SAMPLES && (bestOptions.size() == 0 || !shouldStop()); i++) {
+				List<Span> s = sampler.sample(sentenceRandom);
+				if(s.size() > 0) {
+					int[] parents = SpanUtilities.getParents(s);
+					SpanUtilities.connectChildren(s, parents);
+					bestOptions.add(new ParentedSpans(s, parents));
+				}
+			}
+			if(bestOptions.size() == 0) {
+				lastScore = Double.NEGATIVE_INFINITY;
+				return new ArrayList<>();
+			}
+		}
+		
+		MaxResult result = getMax(bestOptions, words, params);
+		lastScore = result.score;
+		
+		return result.spans;
+	}
+	
+	/**
+	 * Run the random restarts for the current sentence on the decoder tasks, and wait for any helpers to finish
+	 * @param results the best tree from each task and helper is added here, empty if it didn't finish a restart
+	 */
+	private void runRestarts(List<ParentedSpans> results) {
+		synchronized(lockObject) {
+			helperResults.clear();
+			decoding = true;
+		}
+		
+		List<FutureTask<ParentedSpans>> tasks = new ArrayList<>();
+		for(int i = 1; i < decoderTasks.length; i++) {
+			FutureTask<ParentedSpans> task = new FutureTask<>(decoderTasks[i]);
+			tasks.add(task);
+			try {
+				executorService.execute(task);
+			}
+			catch(RejectedExecutionException e) {} // run below
+		}
+		
+		// this thread does restarts too, then runs any task the executor hasn't started,
+		// so decode doesn't wait forever when the executor's threads are all busy waiting on decodes themselves (as with a shared BatchDecoder pool)
+		try {
+			results.add(decoderTasks[0].call());
+		}
+		catch(RuntimeException e) {
+			System.out.println("Exception in decoder");
+			e.printStackTrace();
+		}
+		for(FutureTask<ParentedSpans> task : tasks) {
+			task.run(); // does nothing if another thread has started it
 			try {
-				List<Span> result = completionService.take().get();
-				bestOptions.add(new ParentedSpans(result, SpanUtilities.getParents(result)));
+				results.add(task.get());
 			}
 			catch(ExecutionException e) {
 				System.out.println("Exception in decoder worker thread");
@@ -156,10 +398,61 @@ public class RandomizedGreedyDecoder implements Decoder {
 			catch(InterruptedException e) {}
 		}
 		
-		MaxResult result = getMax(bestOptions, words, params);
-		lastScore = result.score;
-		
-		return result.spans;
+		synchronized(lockObject) {
+			decoding = false;
+			while(activeHelpers > 0) {
+				try {
+					lockObject.wait();
+				}
+				catch(InterruptedException e) {}
+			}
+			results.addAll(helperResults);
+		}
+	}
+	
+	/**
+	 * Run random restarts for the sentence currently being decoded by another thread, on the calling thread.
+	 * Returns once there are no restarts left to start; the decode won't return until then.
+	 * Used by BatchDecoder to put threads that have run out of sentences to work on the slow ones.
+	 * @return false if no decode was running or it had no restarts left, so there was nothing to help with
+	 */
+	public boolean help() {
+		synchronized(lockObject) {
+			if(!decoding || numberIterationsStarted >= maximumRestarts || hasConverged())
+				return false;
+			activeHelpers++;
+		}
+		ParentedSpans result = null;
+		try {
+			result = new DecoderTask().call();
+		}
+		finally {
+			synchronized(lockObject) {
+				if(result != null)
+					helperResults.add(result);
+				activeHelpers--;
+				lockObject.notifyAll();
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * The number of words in the sentence being decoded, or 0 if there is no decode running that help could join
+	 */
+	public int getHelpableLength() {
+		synchronized(lockObject) {
+			if(!decoding || numberIterationsStarted >= maximumRestarts || hasConverged())
+				return 0;
+			return words.size();
+		}
+	}
+	
+	@Override
+	public void close() {
+		if(ownsExecutor && executorService != null)
+			executorService.shutdown();
+		kBestDecoder.close();
 	}
 	
 	double lastScore = 0;
@@ -167,42 +460,82 @@ public class RandomizedGreedyDecoder implements Decoder {
 		return lastScore;
 	}
 	
-	private class DecoderTask implements Callable<List<Span>> {
+	/**
+	 * True if the last decode stopped its random restarts early because of a timeout or cancellation
+	 * @return
+	 */
+	public boolean wasLastDecodeTruncated() {
+		return truncated;
+	}
+	
+	/**
+	 * True if the restart policy says the restarts have stopped improving.  Call while holding lockObject.
+	 */
+	private boolean hasConverged() {
+		if(restartPolicy == null)
+			return false;
+		return numberIterationsStarted >= restartPolicy.getMinimumRestarts(words.size()) && restartsSinceImprovement >= restartPolicy.getPatience();
+	}
+	
+	private boolean shouldStop() {
+		if((hasDeadline && System.nanoTime() - deadline > 0) || (cancellationToken != null && cancellationToken.isCancelled())) {
+			truncated = true;
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Does random restarts until there are no more to start
+	 * @return the best tree found and its parents, empty if no restart finished
+	 */
+	private class DecoderTask implements Callable<ParentedSpans> {
 		@Override
-		public List<Span> call() {
-			List<Span> best = new ArrayList<Span>();
+		public ParentedSpans call() {
+			ParentedSpans best = new ParentedSpans(new ArrayList<Span>(), new int[0]);
 			double bestScore = Double.NEGATIVE_INFINITY;
 			
 			while(true) {
+				int iteration;
+				SplittableRandom random;
 				synchronized(lockObject) {
-					if(numberIterationsStarted < numberSampleIterations) {
+					if(numberIterationsStarted < maximumRestarts && !hasConverged() && !shouldStop()) {
+						iteration = numberIterationsStarted;
 						numberIterationsStarted++;
+						random = sentenceRandom.split();
 					}
 					else {
 						break;
 					}
 				}
 				//System.out.println("new iteration");
-				List<Span> spans = sampler.sample();
-				SpanUtilities.connectChildren(spans);
+				List<Span> spans;
+				if(iteration < kBestSeeds.size() && !pruning.containsPruned(kBestSeeds.get(iteration)))
+					spans = new ArrayList<>(kBestSeeds.get(iteration));
+				else
+					spans = sampler.sample(random);
+				int[] parents = SpanUtilities.getParents(spans); // kept with spans from here on
+				SpanUtilities.connectChildren(spans, parents);
 				if(pruning.containsPruned(spans))
 					throw new RuntimeException();
 				if(!SpanUtilities.usesOnlyExistingRules(spans, rules))
 					throw new RuntimeException();
 				
+				int candidatesScored = 0;
 				if(spans.size() > 0) { // sometimes sampler fails to find valid sample and returns empty list
-					SpanUtilities.checkCorrectness(spans);
+					SpanUtilities.checkCorrectness(spans, parents);
+					
+					ConstituencyTree tree = new ConstituencyTree(spans, parents, rules);
+					TreeScorer scorer = new TreeScorer(tree);
+					GreedyChange.ScorerFactory scorerFactory = doSecondOrder ? makeScorerFactory(scorer) : null; // first order changes are too cheap to score to split up
 					
 					boolean changed = true;
 					double lastScore = Double.NEGATIVE_INFINITY;
-					while(changed) {
-						Set<Span> spansSet = new HashSet<>(spans);
-						if(alreadySeenSpans.contains(spansSet))
+					while(changed && !shouldStop()) {
+						if(!alreadySeenTrees.add(tree.getHash()))
 							break;
-						else
-							alreadySeenSpans.add(spansSet);
 						
-						double score = score(words, spans, params);
+						double score = scorer.getScore(tree);
 						//System.out.println("score: " + score);
 						if(score <= lastScore) {
 							changed = false;
@@ -211,64 +544,73 @@ public class RandomizedGreedyDecoder implements Decoder {
 						
 						// terminal labels
 						for(int i = 0; i < words.size(); i++) {
-							List<ParentedSpans> options = greedyChange.makeGreedyLabelChanges(spans, i, i+1, false, pruning);
-							
-							spans = getMax(options, words, params).spans;
-							
-							if(pruning.containsPruned(spans))
-								throw new RuntimeException();
-							if(!SpanUtilities.usesOnlyExistingRules(spans, rules))
-								throw new RuntimeException();
+							greedyChange.makeBestLabelChange(tree, i, i+1, false, pruning, scorer);
 						}
 						
 						// other spans
-						for(int length = 1; length < words.size() + 1; length++) {
-							for(int start = 0; start < words.size() - length + 1; start++) {
-								boolean exists = false; // if there is actually a span with this start and length
-								for(int i = 0; i < spans.size(); i++) {
-									Span s = spans.get(i);
-									if(s.getStart() == start && s.getEnd() == start + length) {
-										exists = true;
-									}
-								}
-								if(exists) {
-									List<ParentedSpans> update = greedyChange.makeGreedyChanges(spans, start, start + length, pruning);
-									
-									// occasionally check that parents are correct
-									if(update.size() > 0 && Math.random() < .005) {
-										ParentedSpans ps = update.get(0);
-										if(!Arrays.equals(ps.parents, SpanUtilities.getParents(ps.spans)))
-											throw new RuntimeException("Parents incorrect");
-									}
-									
-									spans = getMax(update, words, params).spans;
-									
-									if(pruning.containsPruned(spans))
-										throw new RuntimeException();
-									if(!SpanUtilities.usesOnlyExistingRules(spans, rules))
-										throw new RuntimeException();
+						if(prioritizeUncertainSpans) {
+							for(UncertainSpan span : getSpansByPosterior(tree)) {
+								if(shouldStop())
+									break;
+								if(tree.hasSpan(span.start, span.end)) // may have been moved by an earlier change
+									greedyChange.makeBestChange(tree, span.start, span.end, pruning, scorer, scorerFactory);
+							}
+						}
+						else {
+							for(int length = 1; length < words.size() + 1; length++) {
+								for(int start = 0; start < words.size() - length + 1 && !shouldStop(); start++) {
+									if(tree.hasSpan(start, start + length))
+										greedyChange.makeBestChange(tree, start, start + length, pruning, scorer, scorerFactory);
 								}
 							}
 						}
 						
 						// iterate top level again with constraint to top level label in training set
-						List<ParentedSpans> options = greedyChange.makeGreedyLabelChanges(spans, 0, words.size(), true, pruning);
-						if(options.size() == 0) {
-							break; // no valid option that uses top level labels
+						boolean foundTopLevel = greedyChange.makeBestLabelChange(tree, 0, words.size(), true, pruning, scorer);
+						
+						// occasionally check that the tree is consistent
+						if(random.nextDouble() < .005) {
+							ParentedSpans current = tree.getSpans();
+							if(!Arrays.equals(current.parents, SpanUtilities.getParents(current.spans)))
+								throw new RuntimeException("Parents incorrect");
+							SpanUtilities.checkCorrectness(current.spans, current.parents);
+							if(tree.getHash() != SpanUtilities.treeHash(current.spans))
+								throw new RuntimeException("Hash from changes incorrect");
+							double fullScore = score(words, tree, params);
+							if(Math.abs(scorer.getScore(tree) - fullScore) > 1e-6 * (1 + Math.abs(fullScore)))
+								throw new RuntimeException("Score from changes incorrect");
 						}
-						spans = getMax(options, words, params).spans;
 						
-						if(pruning.containsPruned(spans))
-							throw new RuntimeException();
-						if(!SpanUtilities.usesOnlyExistingRules(spans, rules))
-							throw new RuntimeException();
+						if(!foundTopLevel) {
+							break; // no valid option that uses top level labels
+						}
 					}
+					candidatesScored = scorer.numberScored;
+					
+					ParentedSpans current = tree.getSpans();
+					spans = current.spans;
+					parents = current.parents;
+					if(pruning.containsPruned(spans))
+						throw new RuntimeException();
+					if(!SpanUtilities.usesOnlyExistingRules(spans, rules))
+						throw new RuntimeException();
 				}
-				double score = score(words, spans, params);
+				double score = score(words, spans, parents, params);
 				if(score > bestScore) {
-					best = new ArrayList<>(spans);
+					best = new ParentedSpans(new ArrayList<>(spans), parents);
 					bestScore = score;
 				}
+				
+				synchronized(lockObject) {
+					numberCandidatesScored += candidatesScored;
+					if(score > bestRestartScore) {
+						bestRestartScore = score;
+						restartsSinceImprovement = 0;
+					}
+					else {
+						restartsSinceImprovement++; // includes ending at a local optimum that was already visited
+					}
+				}
 			}
 			
 			return best;
@@ -285,14 +627,56 @@ public class RandomizedGreedyDecoder implements Decoder {
 	public List<Span> decodeNoGreedy(List<Word> words, FeatureParameters params) {
 		firstOrderFeatures.fillScoreArrays(words, params);
 		sampler.calculateProbabilities(words);
+		SplittableRandom random = newSentenceRandom();
 		List<ParentedSpans> options = new ArrayList<>();
 		for(int i = 0; i < 100; i++) {
-			List<Span> s = sampler.sample();
+			List<Span> s = sampler.sample(random);
 			options.add(new ParentedSpans(s, SpanUtilities.getParents(s)));
 		}
 		return getMax(options, words, params).spans;
 	}
 	
+	/**
+	 * Decodes by finding the tree with the largest sum of first order span posteriors, without any sampling or greedy updates
+	 * @param words
+	 * @param params
+	 * @return
+	 */
+	public List<Span> decodeMaxMarginal(List<Word> words, FeatureParameters params) {
+		firstOrderFeatures.fillScoreArrays(words, params);
+		sampler.setCostAugmenting(costAugmenting, goldLabels, goldUnaryLabels);
+		pruning = sampler.calculateProbabilities(words);
+		sampler.calculateOutsideProbabilities();
+		List<Span> spans = sampler.decodeMaxMarginal();
+		if(spans.size() == 0) {
+			lastScore = Double.NEGATIVE_INFINITY;
+			return spans;
+		}
+		lastScore = score(words, spans, params);
+		return spans;
+	}
+	
+	/**
+	 * Decodes by rescoring the k best first order trees with the full (second order) score, without any greedy updates
+	 * @param words
+	 * @param params
+	 * @param k
+	 * @return
+	 */
+	public List<Span> decodeKBestRescore(List<Word> words, FeatureParameters params, int k) {
+		firstOrderFeatures.fillScoreArrays(words, params);
+		pruning = new Pruning(words.size(), labels.getNumberOfLabels()); // the k best trees come from the decoder's own pruning
+		List<ParentedSpans> options = new ArrayList<>();
+		for(List<Span> s : kBestDecoder.decodeKBest(words, params, k)) {
+			options.add(new ParentedSpans(s, SpanUtilities.getParents(s)));
+		}
+		if(options.size() == 0)
+			return new ArrayList<>();
+		MaxResult result = getMax(options, words, params);
+		lastScore = result.score;
+		return result.spans;
+	}
+	
 	private class MaxResult {
 		List<Span> spans;
 		double score;
@@ -325,6 +709,207 @@ public class RandomizedGreedyDecoder implements Decoder {
 		return new MaxResult(best, bestScore);
 	}
 	
+	/**
+	 * A span of the tree and its first order posterior probability
+	 */
+	private static class UncertainSpan implements Comparable<UncertainSpan> {
+		int start;
+		int end;
+		double posterior;
+		
+		UncertainSpan(int start, int end, double posterior) {
+			this.start = start;
+			this.end = end;
+			this.posterior = posterior;
+		}
+		
+		@Override
+		public int compareTo(UncertainSpan other) {
+			return Double.compare(posterior, other.posterior);
+		}
+	}
+	
+	/**
+	 * The spans in tree, the least likely under the sampler's posteriors first.  The label seen by the parent is used for the posterior.
+	 */
+	private List<UncertainSpan> getSpansByPosterior(ConstituencyTree tree) {
+		List<UncertainSpan> result = new ArrayList<>();
+		for(ConstituencyTree.Node node : tree.getNodes()) {
+			result.add(new UncertainSpan(node.start, node.end, sampler.getSpanPosterior(node.start, node.end, node.getOuterLabel())));
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	/**
+	 * Scorers for copies of the tree when candidates are scored on other threads.  The number of candidates they score is added to scorer.
+	 */
+	private GreedyChange.ScorerFactory makeScorerFactory(final TreeScorer scorer) {
+		return new GreedyChange.ScorerFactory() {
+			@Override
+			public GreedyChange.CandidateScorer makeScorer(ConstituencyTree tree) {
+				return new TreeScorer(tree);
+			}
+			
+			@Override
+			public void done(GreedyChange.CandidateScorer copyScorer) {
+				scorer.numberScored += ((TreeScorer)copyScorer).numberScored;
+			}
+		};
+	}
+	
+	/**
+	 * Scores greedy changes by rescoring only the nodes changed since the last change that was kept, relative to the cached score of the tree then.
+	 * With second order features the whole tree is scored every time, since those features aren't local.
+	 */
+	private class TreeScorer implements GreedyChange.CandidateScorer {
+		double baseScore; // sum of the finite node scores of the committed tree
+		int baseInvalid; // number of nodes in the committed tree that make it invalid (score -inf)
+		
+		// for the changes being scored
+		double delta;
+		int invalid;
+		int stamp = 0;
+		
+		int numberScored = 0;
+		
+		TreeScorer(ConstituencyTree tree) {
+			baseScore = 0;
+			baseInvalid = 0;
+			if(!doSecondOrder)
+				cacheScores(tree.getRoot());
+		}
+		
+		private void cacheScores(ConstituencyTree.Node node) {
+			node.cachedScore = scoreLocal(node);
+			if(node.cachedScore == Double.NEGATIVE_INFINITY)
+				baseInvalid++;
+			else
+				baseScore += node.cachedScore;
+			if(!node.terminal) {
+				cacheScores(node.left);
+				cacheScores(node.right);
+			}
+		}
+		
+		@Override
+		public double getScore(ConstituencyTree tree) {
+			if(doSecondOrder)
+				return RandomizedGreedyDecoder.this.score(words, tree, params);
+			return baseInvalid > 0 ? Double.NEGATIVE_INFINITY : baseScore;
+		}
+		
+		@Override
+		public double score(ConstituencyTree tree) {
+			numberScored++;
+			if(doSecondOrder)
+				return RandomizedGreedyDecoder.this.score(words, tree, params);
+			findChanges(tree, false);
+			return invalid > 0 ? Double.NEGATIVE_INFINITY : baseScore + delta;
+		}
+		
+		@Override
+		public void changeMade(ConstituencyTree tree) {
+			if(doSecondOrder)
+				return;
+			findChanges(tree, true);
+			baseScore += delta;
+			baseInvalid = invalid;
+		}
+		
+		private void findChanges(ConstituencyTree tree, boolean keep) {
+			stamp++;
+			delta = 0;
+			invalid = baseInvalid;
+			for(int i = 0; i < tree.getNumberChanged(); i++) {
+				ConstituencyTree.Node node = tree.getChangedNode(i);
+				rescore(node, keep);
+				if(node.parent != null)
+					rescore(node.parent, keep); // the parent's rule includes the label of node
+			}
+		}
+		
+		private void rescore(ConstituencyTree.Node node, boolean keep) {
+			if(node.scoreStamp == stamp)
+				return;
+			node.scoreStamp = stamp;
+			double oldScore = node.cachedScore, newScore = scoreLocal(node);
+			if(oldScore == Double.NEGATIVE_INFINITY)
+				invalid--;
+			else
+				delta -= oldScore;
+			if(newScore == Double.NEGATIVE_INFINITY)
+				invalid++;
+			else
+				delta += newScore;
+			if(keep)
+				node.cachedScore = newScore;
+		}
+	}
+	
+	/**
+	 * Set up the scores for a sentence without pruning and make the scorer used for greedy changes to tree.  Used to test TreeScorer against score.
+	 */
+	GreedyChange.CandidateScorer makeTreeScorer(List<Word> words, FeatureParameters params, ConstituencyTree tree) {
+		this.words = words;
+		this.params = params;
+		firstOrderFeatures.fillScoreArrays(words, params);
+		pruning = new Pruning(words.size(), labels.getNumberOfLabels());
+		return new TreeScorer(tree);
+	}
+
+	/**
+	 * Score a whole parse tree in the form used for greedy changes.  Greedy changes are scored with TreeScorer, so this is only used to check it.
+	 */
+	double score(List<Word> words, ConstituencyTree tree, FeatureParameters params) {
+		if(doSecondOrder) {
+			ParentedSpans spans = tree.getSpans();
+			return score(words, spans.spans, spans.parents, params);
+		}
+		return scoreNode(tree.getRoot());
+	}
+	
+	private double scoreNode(ConstituencyTree.Node node) {
+		double score = scoreLocal(node);
+		if(!node.terminal)
+			score += scoreNode(node.left) + scoreNode(node.right);
+		return score;
+	}
+	
+	/**
+	 * The first order score of the spans for node, which are its unary (if any) and its binary or terminal span
+	 * @return -inf if the spans are pruned or use a rule that doesn't exist
+	 */
+	private double scoreLocal(ConstituencyTree.Node node) {
+		int start = node.start, end = node.end;
+		double score = 0;
+		if(node.unaryLabel != -1) {
+			if(pruning.isPruned(start, end, node.unaryLabel))
+				return Double.NEGATIVE_INFINITY;
+			int ruleId = rules.getUnaryId(node.unaryLabel, node.label);
+			if(ruleId == -1)
+				return Double.NEGATIVE_INFINITY;
+			score += firstOrderFeatures.scoreUnary(start, end, ruleId);
+			if(costAugmenting && goldUnaryLabels[start][end] != node.unaryLabel)
+				score += 1;
+		}
+		
+		if(pruning.isPruned(start, end, node.label))
+			return Double.NEGATIVE_INFINITY;
+		if(node.terminal) {
+			score += firstOrderFeatures.scoreTerminal(start, node.label);
+		}
+		else {
+			int ruleId = rules.getBinaryId(node.label, node.left.getOuterLabel(), node.right.getOuterLabel());
+			if(ruleId == -1)
+				return Double.NEGATIVE_INFINITY;
+			score += firstOrderFeatures.scoreBinary(start, end, node.left.end, ruleId);
+		}
+		if(costAugmenting && goldLabels[start][end] != node.label)
+			score += 1;
+		return score;
+	}
+	
 	private double score(List<Word> words, List<Span> spans, FeatureParameters params) {
 		return score(words, spans, SpanUtilities.getParents(spans), params);
 	}
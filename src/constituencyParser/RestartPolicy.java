@@ -0,0 +1,34 @@
+package constituencyParser;
+
+/**
+ * Decides how many random restarts RandomizedGreedyDecoder does for a sentence.  Restarts stop once patience restarts in a row
+ * have not found a better tree, but never before the minimum or after the maximum for the sentence length.
+ * The minimum and maximum are base + perWord * number of words.
+ */
+public class RestartPolicy {
+	private final int patience;
+	private final int minimumBase;
+	private final double minimumPerWord;
+	private final int maximumBase;
+	private final double maximumPerWord;
+	
+	public RestartPolicy(int patience, int minimumBase, double minimumPerWord, int maximumBase, double maximumPerWord) {
+		this.patience = patience;
+		this.minimumBase = minimumBase;
+		this.minimumPerWord = minimumPerWord;
+		this.maximumBase = maximumBase;
+		this.maximumPerWord = maximumPerWord;
+	}
+	
+	public int getPatience() {
+		return patience;
+	}
+	
+	public int getMinimumRestarts(int numberOfWords) {
+		return minimumBase + (int)(minimumPerWord * numberOfWords);
+	}
+	
+	public int getMaximumRestarts(int numberOfWords) {
+		return Math.max(getMinimumRestarts(numberOfWords), maximumBase + (int)(maximumPerWord * numberOfWords));
+	}
+}
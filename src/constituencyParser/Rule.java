@@ -11,6 +11,13 @@ public class Rule implements Serializable {
 		TERMINAL // of the form A->word
 	}
 	
+	// rules never change, so there only needs to be one terminal rule for each label
+	private static final Rule[] terminalRules = new Rule[RuleEnumeration.NUMBER_LABELS];
+	static {
+		for(int i = 0; i < terminalRules.length; i++)
+			terminalRules[i] = new Rule(i);
+	}
+	
 	public Rule(int p, int l, int r) {
 		label = p;
 		left = l;
@@ -21,11 +28,14 @@ public class Rule implements Serializable {
 	public Rule(int label, int child) {
 		this.label = label;
 		left = child;
+		right = 0;
 		type = Type.UNARY;
 	}
 	
 	public Rule(int label) {
 		this.label = label;
+		left = 0;
+		right = 0;
 		type = Type.TERMINAL;
 	}
 	
@@ -36,10 +46,17 @@ public class Rule implements Serializable {
 		this.right = other.right;
 	}
 	
-	private volatile Type type;
-	private volatile int label;
-	private volatile int left;
-	private volatile int right;
+	private final Type type;
+	private final int label;
+	private final int left;
+	private final int right;
+	
+	/**
+	 * The shared terminal rule for label
+	 */
+	public static Rule getTerminalRule(int label) {
+		return label >= 0 && label < terminalRules.length ? terminalRules[label] : new Rule(label);
+	}
 	
 	public int getLabel() {
 		return label;
@@ -58,21 +75,26 @@ public class Rule implements Serializable {
 	}
 	
 	public Rule changeLabel(int label) {
-		Rule newRule = new Rule(this);
-		newRule.label = label;
-		return newRule;
+		if(type == Type.BINARY)
+			return new Rule(label, left, right);
+		else if(type == Type.UNARY)
+			return new Rule(label, left);
+		else
+			return getTerminalRule(label);
 	}
 	
 	public boolean equals(Object other) {
+		if(other == this)
+			return true;
 		if(other instanceof Rule) {
 			Rule otherR = (Rule)other;
-			return type.equals(otherR.type) && otherR.label == label && otherR.left == left && otherR.right == right;
+			return type == otherR.type && otherR.label == label && otherR.left == left && otherR.right == right;
 		}
 		return false;
 	}
 	
 	public int hashCode() {
-		return type.hashCode() * 11 + label * 13 + left * 17 + right * 19;
+		return type.ordinal() * 11 + label * 13 + left * 17 + right * 19;
 	}
 	
 	public String toString(LabelEnumeration labels) {
@@ -94,7 +116,7 @@ public class Rule implements Serializable {
 	}
 	
 	public static Rule getRule(String label, LabelEnumeration labelEnum) {
-		return new Rule(labelEnum.getId(label));
+		return getTerminalRule(labelEnum.getId(label));
 	}
 	
 	public static Rule getRule(String parent, String child, LabelEnumeration labelEnum) {
@@ -1,7 +1,11 @@
 package constituencyParser;
 
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TIntObjectHashMap;
+
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 
@@ -21,6 +25,100 @@ public class RuleEnumeration implements Serializable {
 	
 	static final int NUMBER_LABELS = 150;
 	
+	private static final int[] EMPTY = new int[0];
+	
+	private transient volatile RuleIndex ruleIndex; // built when first needed and thrown away when a rule is added
+	
+	/**
+	 * Rule ids grouped by the labels in the rules, so parsers can go through only the rules that can apply
+	 */
+	private static class RuleIndex {
+		final int[][] binaryByLeft;
+		final int[][] binaryByLabel;
+		final int[][] unaryByChild;
+		final int[][] unaryByLabel;
+		
+		// indexed by pairOffset of two labels; each array is in increasing order
+		final int[][] labelsByChildren; // parent labels of the binary rules with these left and right children
+		final int[][] leftChildren; // left children of the binary rules with this label and right child
+		final int[][] rightChildren; // right children of the binary rules with this label and left child
+		final int[][] unaryLeftChildren; // unary rule ids whose label is in leftChildren
+		final int[][] unaryRightChildren; // unary rule ids whose label is in rightChildren
+		
+		RuleIndex(List<Rule> binaryRules, List<Rule> unaryRules) {
+			TIntArrayList[] byLeft = makeLists();
+			TIntArrayList[] byLabel = makeLists();
+			for(int r = 0; r < binaryRules.size(); r++) {
+				byLeft[binaryRules.get(r).getLeft()].add(r);
+				byLabel[binaryRules.get(r).getLabel()].add(r);
+			}
+			binaryByLeft = toArrays(byLeft);
+			binaryByLabel = toArrays(byLabel);
+			
+			TIntArrayList[] byChild = makeLists();
+			byLabel = makeLists();
+			for(int r = 0; r < unaryRules.size(); r++) {
+				byChild[unaryRules.get(r).getLeft()].add(r);
+				byLabel[unaryRules.get(r).getLabel()].add(r);
+			}
+			unaryByChild = toArrays(byChild);
+			unaryByLabel = toArrays(byLabel);
+			
+			TIntObjectHashMap<TIntArrayList> byChildren = new TIntObjectHashMap<>();
+			TIntObjectHashMap<TIntArrayList> lefts = new TIntObjectHashMap<>();
+			TIntObjectHashMap<TIntArrayList> rights = new TIntObjectHashMap<>();
+			TIntObjectHashMap<TIntArrayList> unaryLefts = new TIntObjectHashMap<>();
+			TIntObjectHashMap<TIntArrayList> unaryRights = new TIntObjectHashMap<>();
+			for(Rule rule : binaryRules) {
+				int label = rule.getLabel(), left = rule.getLeft(), right = rule.getRight();
+				getList(byChildren, pairOffset(left, right)).add(label);
+				getList(lefts, pairOffset(label, right)).add(left);
+				getList(rights, pairOffset(label, left)).add(right);
+				getList(unaryLefts, pairOffset(label, right)).add(unaryByLabel[left]);
+				getList(unaryRights, pairOffset(label, left)).add(unaryByLabel[right]);
+			}
+			labelsByChildren = toSortedArrays(byChildren);
+			leftChildren = toSortedArrays(lefts);
+			rightChildren = toSortedArrays(rights);
+			unaryLeftChildren = toSortedArrays(unaryLefts);
+			unaryRightChildren = toSortedArrays(unaryRights);
+		}
+		
+		private static TIntArrayList getList(TIntObjectHashMap<TIntArrayList> lists, int key) {
+			TIntArrayList list = lists.get(key);
+			if(list == null) {
+				list = new TIntArrayList();
+				lists.put(key, list);
+			}
+			return list;
+		}
+		
+		private static int[][] toSortedArrays(TIntObjectHashMap<TIntArrayList> lists) {
+			int[][] arrays = new int[NUMBER_LABELS * NUMBER_LABELS][];
+			Arrays.fill(arrays, EMPTY);
+			for(int key : lists.keys()) {
+				TIntArrayList list = lists.get(key);
+				list.sort();
+				arrays[key] = list.toArray();
+			}
+			return arrays;
+		}
+		
+		private static TIntArrayList[] makeLists() {
+			TIntArrayList[] lists = new TIntArrayList[NUMBER_LABELS];
+			for(int i = 0; i < NUMBER_LABELS; i++)
+				lists[i] = new TIntArrayList();
+			return lists;
+		}
+		
+		private static int[][] toArrays(TIntArrayList[] lists) {
+			int[][] arrays = new int[lists.length][];
+			for(int i = 0; i < lists.length; i++)
+				arrays[i] = lists[i].toArray();
+			return arrays;
+		}
+	}
+	
 	public RuleEnumeration() {
 		 binaryIds = new int[NUMBER_LABELS][NUMBER_LABELS][NUMBER_LABELS];
 		 unaryIds = new int[NUMBER_LABELS][NUMBER_LABELS];
@@ -54,6 +152,7 @@ public class RuleEnumeration implements Serializable {
 			int id = binaryRules.size();
 			binaryRules.add(rule);
 			binaryIds[label][left][right] = id;
+			ruleIndex = null;
 		}
 	}
 	
@@ -63,6 +162,7 @@ public class RuleEnumeration implements Serializable {
 			int id = unaryRules.size();
 			unaryRules.add(rule);
 			unaryIds[label][left] = id;
+			ruleIndex = null;
 		}
 	}
 	
@@ -103,6 +203,13 @@ public class RuleEnumeration implements Serializable {
 		return binaryIds[rule.getLabel()][rule.getLeft()][rule.getRight()];
 	}
 	
+	/**
+	 * @return -1 if there is no such rule
+	 */
+	public int getBinaryId(int label, int left, int right) {
+		return binaryIds[label][left][right];
+	}
+	
 	public int getNumberOfBinaryRules() {
 		return binaryRules.size();
 	}
@@ -115,17 +222,100 @@ public class RuleEnumeration implements Serializable {
 		return unaryIds[rule.getLabel()][rule.getLeft()];
 	}
 	
+	/**
+	 * @return -1 if there is no such rule
+	 */
+	public int getUnaryId(int label, int child) {
+		return unaryIds[label][child];
+	}
+	
 	public int getNumberOfUnaryRules() {
 		return unaryRules.size();
 	}
 	
+	private RuleIndex getRuleIndex() {
+		RuleIndex index = ruleIndex;
+		if(index == null) {
+			index = new RuleIndex(binaryRules, unaryRules);
+			ruleIndex = index;
+		}
+		return index;
+	}
+	
+	/**
+	 * Ids of the binary rules with left as their left child
+	 */
+	public int[] getBinaryRulesWithLeft(int left) {
+		return getRuleIndex().binaryByLeft[left];
+	}
+	
+	/**
+	 * Ids of the binary rules with label as their parent
+	 */
+	public int[] getBinaryRulesWithLabel(int label) {
+		return getRuleIndex().binaryByLabel[label];
+	}
+	
+	/**
+	 * Ids of the unary rules with child as their child
+	 */
+	public int[] getUnaryRulesWithChild(int child) {
+		return getRuleIndex().unaryByChild[child];
+	}
+	
+	/**
+	 * Ids of the unary rules with label as their parent
+	 */
+	public int[] getUnaryRulesWithLabel(int label) {
+		return getRuleIndex().unaryByLabel[label];
+	}
+	
+	private static int pairOffset(int first, int second) {
+		return first * NUMBER_LABELS + second;
+	}
+	
+	/**
+	 * Labels of the binary rules with left and right as children, in increasing order
+	 */
+	public int[] getLabelsWithChildren(int left, int right) {
+		return getRuleIndex().labelsByChildren[pairOffset(left, right)];
+	}
+	
+	/**
+	 * Labels that can be the left child of label when right is the right child, in increasing order
+	 */
+	public int[] getLeftChildLabels(int label, int right) {
+		return getRuleIndex().leftChildren[pairOffset(label, right)];
+	}
+	
+	/**
+	 * Labels that can be the right child of label when left is the left child, in increasing order
+	 */
+	public int[] getRightChildLabels(int label, int left) {
+		return getRuleIndex().rightChildren[pairOffset(label, left)];
+	}
+	
+	/**
+	 * Ids of the unary rules that can be the left child of label when right is the right child, in increasing order
+	 */
+	public int[] getUnaryRulesAsLeftChild(int label, int right) {
+		return getRuleIndex().unaryLeftChildren[pairOffset(label, right)];
+	}
+	
+	/**
+	 * Ids of the unary rules that can be the right child of label when left is the left child, in increasing order
+	 */
+	public int[] getUnaryRulesAsRightChild(int label, int left) {
+		return getRuleIndex().unaryRightChildren[pairOffset(label, left)];
+	}
+	
 	public Rule getRule(int id, Type type) {
 		if(type == Type.BINARY)
 			return getBinaryRule(id);
 		else if(type == Type.UNARY)
 			return getUnaryRule(id);
 		else if(type == Type.TERMINAL)
-			return new Rule(id);
+			return Rule.getTerminalRule(id);
 		else return null;
 	}
 	
@@ -166,13 +166,32 @@ public class RunTraining {
 		}
 		System.out.println(" Done.");
 		
-		Decoder decoder;
-		if(useRandGreedy)
-			decoder = new RandomizedGreedyDecoder(words, labels, rules, cores);
-		else
-			decoder = new DiscriminativeCKYDecoder(words, labels, rules);
-		
-		Train pa = new Train(words, labels, rules, decoder, params);
+		Decoder decoder = null; // only made here when one decoder is used for training
+		Train pa;
+		if(batchSize > 1 && cores > 1) {
+			// the examples of a batch are decoded in parallel, each thread with its own single threaded decoder
+			final WordEnumeration finalWords = words;
+			final LabelEnumeration finalLabels = labels;
+			final RuleEnumeration finalRules = rules;
+			final boolean finalUseRandGreedy = useRandGreedy;
+			pa = new Train(words, labels, rules, new DecoderFactory() {
+				@Override
+				public Decoder makeDecoder() {
+					if(finalUseRandGreedy)
+						return new RandomizedGreedyDecoder(finalWords, finalLabels, finalRules, 1);
+					else
+						return new DiscriminativeCKYDecoder(finalWords, finalLabels, finalRules);
+				}
+			}, cores, params);
+		}
+		else {
+			if(useRandGreedy)
+				decoder = new RandomizedGreedyDecoder(words, labels, rules, cores);
+			else
+				decoder = new DiscriminativeCKYDecoder(words, labels, rules);
+			
+			pa = new Train(words, labels, rules, decoder, params);
+		}
 		
 		for(int i = 0; i < iterations; i++) {
 			System.out.println("Iteration " + i + ":");
@@ -191,6 +210,9 @@ public class RunTraining {
 			if(mira)
 				params.unaverageParameters();
 		}
+		pa.close();
+		if(decoder != null)
+			decoder.close();
 	}
 	
 	static class TrainResult {
@@ -237,6 +259,9 @@ public class RunTraining {
 				ex.printStackTrace(); //because otherwise exceptions get caught by the executor and don't give a stack trace
 				throw ex;
 			}
+			finally {
+				decoder.close();
+			}
 			words = null;
 			labels = null;
 			rules = null;
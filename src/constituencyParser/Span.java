@@ -25,7 +25,7 @@ public class Span {
 	 * @param label
 	 */
 	public Span(int position, int label) {
-		this.rule = new Rule(label);
+		this.rule = Rule.getTerminalRule(label);
 		this.start = position;
 		this.end = position + 1;
 	}
@@ -167,20 +167,7 @@ public class Span {
 	}
 	
 	public Span changeLabel(int label) {
-		Rule newRule;
-		switch(this.rule.getType()) {
-		case UNARY:
-			newRule = new Rule(label, this.rule.getLeft());
-			break;
-		case TERMINAL:
-			newRule = new Rule(label);
-			break;
-		case BINARY:
-			newRule = new Rule(label, this.rule.getLeft(), this.rule.getRight());
-			break;
-		default:
-			throw new RuntimeException();
-		}
+		Rule newRule = rule.changeLabel(label);
 		Span result =  new Span(start, end, split, newRule);
 		result.setLeft(left);
 		result.setRight(right);
@@ -194,7 +181,7 @@ public class Span {
 			newRule = new Rule(this.rule.getLabel(), label);
 			break;
 		case TERMINAL:
-			newRule = new Rule(this.rule.getLabel());
+			newRule = this.rule; // terminals have no child label
 			break;
 		case BINARY:
 			if(left)
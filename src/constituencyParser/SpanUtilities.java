@@ -1,5 +1,7 @@
 package constituencyParser;
 
+import gnu.trove.map.hash.TLongIntHashMap;
+
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
@@ -67,8 +69,13 @@ public class SpanUtilities {
 	 * Throws exception if spans are not well formed
 	 */
 	public static void checkCorrectness(List<Span> spans) {
-		int[] parents = getParents(spans);
-		
+		checkCorrectness(spans, getParents(spans));
+	}
+	
+	/**
+	 * Throws exception if spans with parents are not well formed
+	 */
+	public static void checkCorrectness(List<Span> spans, int[] parents) {
 		int topLevelCount = 0;
 		for(int i = 0; i < spans.size(); i++) {
 			Span s = spans.get(i);
@@ -109,42 +116,56 @@ public class SpanUtilities {
 	}
 	
 	/**
-	 * Returns an int[] where each element is the index of the parent span in spans or -1 if no parent
+	 * Returns an int[] where each element is the index of the parent span in spans or -1 if no parent.
+	 * Parents are looked up in hash tables by the position and label of the child they need, so this is linear in the number of spans.
+	 * A unary parent is used over a binary one, and if several spans could be the parent the last one in spans is used.
 	 * @param spans
 	 * @return
 	 */
 	public static int[] getParents(List<Span> spans) {
-		int[] result = new int[spans.size()];
-		for(int i = 0; i < result.length; i++) {
-			Span s = spans.get(i);
-			result[i] = -1;
-			// connect to a unary if possible
-			for(int j = 0; j < result.length; j++) {
-				if(i==j)
-					continue;
-				
-				Span p = spans.get(j);
-				if(p.getRule().getType() == Type.UNARY) {
-					if(p.getStart() == s.getStart() && p.getEnd() == s.getEnd() && p.getRule().getLeft() == s.getRule().getLabel())
-						result[i] = j;
-				}
+		int size = spans.size();
+		TLongIntHashMap unaryByChild = new TLongIntHashMap(size, 0.5f, -1, -1);
+		TLongIntHashMap binaryByLeftChild = new TLongIntHashMap(size, 0.5f, -1, -1);
+		TLongIntHashMap binaryByRightChild = new TLongIntHashMap(size, 0.5f, -1, -1);
+		for(int j = 0; j < size; j++) {
+			Span p = spans.get(j);
+			Rule rule = p.getRule();
+			if(rule.getType() == Type.UNARY) {
+				unaryByChild.put(childKey(p.getStart(), p.getEnd(), rule.getLeft()), j);
 			}
-			
-			if(result[i] != -1)
-				continue;
-			for(int j = 0; j < result.length; j++) {
-				if(i == j)
-					continue;
-				
-				Span p = spans.get(j);
-				if(p.getRule().getType() == Type.BINARY) {
-					if((p.getStart() == s.getStart() && p.getSplit() == s.getEnd() && p.getRule().getLeft() == s.getRule().getLabel())
-							|| (p.getSplit() == s.getStart() && p.getEnd() == s.getEnd() && p.getRule().getRight() == s.getRule().getLabel())) {
-						result[i] = j;
-					}
-				}
+			else if(rule.getType() == Type.BINARY) {
+				binaryByLeftChild.put(childKey(p.getStart(), p.getSplit(), rule.getLeft()), j);
+				binaryByRightChild.put(childKey(p.getSplit(), p.getEnd(), rule.getRight()), j);
 			}
 		}
+		
+		int[] result = new int[size];
+		for(int i = 0; i < size; i++) {
+			Span s = spans.get(i);
+			long key = childKey(s.getStart(), s.getEnd(), s.getRule().getLabel());
+			// connect to a unary if possible
+			int parent = unaryByChild.get(key);
+			if(parent == i)
+				parent = findOtherUnaryParent(spans, i); // a unary with the same label as its child, which is not its own parent
+			if(parent == -1)
+				parent = Math.max(binaryByLeftChild.get(key), binaryByRightChild.get(key));
+			result[i] = parent;
+		}
+		return result;
+	}
+	
+	private static long childKey(int start, int end, int label) {
+		return ((long)start << 40) | ((long)end << 20) | label;
+	}
+	
+	private static int findOtherUnaryParent(List<Span> spans, int child) {
+		Span s = spans.get(child);
+		int result = -1;
+		for(int j = 0; j < spans.size(); j++) {
+			Span p = spans.get(j);
+			if(j != child && p.getRule().getType() == Type.UNARY && p.getStart() == s.getStart() && p.getEnd() == s.getEnd() && p.getRule().getLeft() == s.getRule().getLabel())
+				result = j;
+		}
 		return result;
 	}
 	
@@ -173,4 +194,47 @@ public class SpanUtilities {
 		}
 		return true;
 	}
+	
+	/**
+	 * A 64 bit hash of one span: its start, end, split, and rule, mixed so that the bits are close to random.
+	 * Positions must be below 4096 and labels below 256.
+	 */
+	public static long spanHash(Span span) {
+		Rule rule = span.getRule();
+		Type type = rule.getType();
+		return spanHash(type, span.getStart(), span.getEnd(), type == Type.BINARY ? span.getSplit() : 0,
+				rule.getLabel(), type == Type.TERMINAL ? 0 : rule.getLeft(), type == Type.BINARY ? rule.getRight() : 0);
+	}
+	
+	/**
+	 * The same as spanHash for a span with these fields, without making the span
+	 * @param split 0 if not binary
+	 * @param left 0 for a terminal
+	 * @param right 0 if not binary
+	 */
+	static long spanHash(Type type, int start, int end, int split, int label, int left, int right) {
+		long key = start;
+		key = (key << 12) | end;
+		key = (key << 12) | split;
+		key = (key << 2) | type.ordinal();
+		key = (key << 8) | label;
+		key = (key << 8) | left;
+		key = (key << 8) | right;
+		
+		// the splitmix64 finalizer
+		key = (key ^ (key >>> 30)) * 0xbf58476d1ce4e5b9L;
+		key = (key ^ (key >>> 27)) * 0x94d049bb133111ebL;
+		return key ^ (key >>> 31);
+	}
+	
+	/**
+	 * A Zobrist style hash of a tree: the xor of the spanHash of each span.  It doesn't depend on the order of spans,
+	 * and when a move replaces some spans it can be updated by xoring out the old spans and xoring in the new ones.
+	 */
+	public static long treeHash(List<Span> spans) {
+		long hash = 0;
+		for(int i = 0; i < spans.size(); i++)
+			hash ^= spanHash(spans.get(i));
+		return hash;
+	}
 }
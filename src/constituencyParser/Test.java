@@ -16,6 +16,7 @@ import joptsimple.OptionSet;
 import constituencyParser.TreeNode.Bracket;
 import constituencyParser.features.FeatureParameters;
 import constituencyParser.features.Features;
+import constituencyParser.features.FirstOrderFeatureHolder;
 
 /**
  * Has methods for testing parsers in comparison to development / test data
@@ -76,15 +77,22 @@ public class Test {
 		test(words, labels, rules, parameters, dataDir, secondOrder, greedyIterations, percentOfData, numberOfThreads, useRandGreedy, section, dataFile);
 	}
 
-	public static void test(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, FeatureParameters parameters, String dataFolder, boolean secondOrder, int randomizedGreedyIterations, double fractionOfData, int threads, boolean useRandGreedy, int section, String dataFile) throws IOException {
-		Decoder decoder;
-		if(useRandGreedy) {
-			RandomizedGreedyDecoder rg = new RandomizedGreedyDecoder(words, labels, rules, threads);
-			rg.setNumberSampleIterations(randomizedGreedyIterations);
-			decoder = rg;
-		}
-		else
-			decoder = new DiscriminativeCKYDecoder(words, labels, rules);
+	public static void test(final WordEnumeration words, final LabelEnumeration labels, final RuleEnumeration rules, FeatureParameters parameters, String dataFolder, boolean secondOrder, final int randomizedGreedyIterations, double fractionOfData, int threads, final boolean useRandGreedy, int section, String dataFile) throws IOException {
+		// each thread gets its own single threaded decoder and works on different sentences
+		BatchDecoder decoder = new BatchDecoder(new DecoderFactory() {
+			@Override
+			public Decoder makeDecoder() {
+				if(useRandGreedy) {
+					RandomizedGreedyDecoder rg = new RandomizedGreedyDecoder(words, labels, rules, 1);
+					rg.setNumberSampleIterations(randomizedGreedyIterations);
+					return rg;
+				}
+				else
+					return new DiscriminativeCKYDecoder(words, labels, rules);
+			}
+		}, threads);
+		decoder.setSecondOrder(secondOrder);
+		decoder.setHelpWhenIdle(true); // idle threads help with the restarts of the long sentences at the end
 		
 		List<SpannedWords> gold;
 		if(dataFile == null)
@@ -100,6 +108,12 @@ public class Test {
 		int numberGold = 0;
 		int numberOutput = 0;
 		
+		List<List<Word>> sentences = new ArrayList<>();
+		for(SpannedWords example : gold)
+			sentences.add(example.getWords());
+		List<BatchDecoder.Result> results = decoder.decodeBatch(sentences, parameters);
+		decoder.close();
+		
 		PennTreebankWriter writer = new PennTreebankWriter("output.tst", words, labels, false);
 		int cnt = 0;
 		for(SpannedWords example : gold) {
@@ -110,9 +124,8 @@ public class Test {
 
 			List<Bracket> goldBrackets = TreeNode.makeTreeFromSpans(example.getSpans(), example.getWords(), words, labels).unbinarize().getAllBrackets();
 			
-			decoder.setSecondOrder(secondOrder);
-
-			List<Span> result = decoder.decode(example.getWords(), parameters);
+			BatchDecoder.Result decoded = results.get(cnt - 1);
+			List<Span> result = decoded.getSpans();
 			if(result.size() == 0) {
 				numberGold += goldBrackets.size();
 				continue;
@@ -136,8 +149,8 @@ public class Test {
 				goldScore += parameters.getScore(code);
 			}
 			
-			if(goldScore > decoder.getLastScore() + 1e-5) {
-				System.out.println("Gold score higher than predicted, but was not found. " + goldScore + " " + decoder.getLastScore());
+			if(goldScore > decoded.getScore() + 1e-5) {
+				System.out.println("Gold score higher than predicted, but was not found. " + goldScore + " " + decoded.getScore());
 			}
 
 			numberGold += goldBrackets.size();
@@ -191,28 +204,29 @@ public class Test {
 		
 		@Override
 		public TestResult call() throws Exception {
-			RandomizedGreedyDecoder randGreedyDecoder = new RandomizedGreedyDecoder(words, labels, rules, 1);
-			randGreedyDecoder.setNumberSampleIterations(randomizedGreedyIterations);
-
-			randGreedyDecoder.setSecondOrder(secondOrder);
-			
-			int numberCorrect = 0;
-			int numberGold = 0;
-			int numberOutput = 0;
-			for(SpannedWords example : gold) {
-				List<Span> result = randGreedyDecoder.decode(example.getWords(), parameters);
-
-				for(Span span : result) {
-					for(Span goldSpan : example.getSpans()) {
-						if(span.getStart() == goldSpan.getStart() && span.getEnd() == goldSpan.getEnd() && span.getRule().getLabel() == goldSpan.getRule().getLabel())
-							numberCorrect++;
+			try(RandomizedGreedyDecoder randGreedyDecoder = new RandomizedGreedyDecoder(words, labels, rules, 1)) {
+				randGreedyDecoder.setNumberSampleIterations(randomizedGreedyIterations);
+
+				randGreedyDecoder.setSecondOrder(secondOrder);
+				
+				int numberCorrect = 0;
+				int numberGold = 0;
+				int numberOutput = 0;
+				for(SpannedWords example : gold) {
+					List<Span> result = randGreedyDecoder.decode(example.getWords(), parameters);
+
+					for(Span span : result) {
+						for(Span goldSpan : example.getSpans()) {
+							if(span.getStart() == goldSpan.getStart() && span.getEnd() == goldSpan.getEnd() && span.getRule().getLabel() == goldSpan.getRule().getLabel())
+								numberCorrect++;
+						}
 					}
-				}
 
-				numberGold += example.getSpans().size();
-				numberOutput += result.size();
+					numberGold += example.getSpans().size();
+					numberOutput += result.size();
+				}
+				return new TestResult(numberCorrect, numberGold, numberOutput);
 			}
-			return new TestResult(numberCorrect, numberGold, numberOutput);
 		}
 	}
 
@@ -283,12 +297,107 @@ public class Test {
 		List<Span> result2 = decoder2.decode(words.getWords(Arrays.asList("I", "go", "to", "the", "supermarket", ".")), parameters);
 
 		List<Span> result3 = decoder2.decodeNoGreedy(words.getWords(Arrays.asList("I", "go", "to", "the", "supermarket", ".")), parameters);
+		decoder2.close();
 
 		System.out.println(result);
 		System.out.println(result2);
 		System.out.println(result3);
 	}
 
+	/**
+	 * Times the sampler's inside pass on the long sentences of a section, with exact and table based log addition
+	 */
+	public static void benchmarkInsidePass() throws Exception {
+		SaveObject savedModel = SaveObject.loadSaveObject("modelIteration1");
+
+		WordEnumeration words = savedModel.getWords();
+		LabelEnumeration labels = savedModel.getLabels();
+		RuleEnumeration rules = savedModel.getRules();
+		FeatureParameters parameters = savedModel.getParameters();
+
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 22, 23, words, labels, rules, false);
+		List<List<Word>> sentences = new ArrayList<>();
+		for(SpannedWords example : examples) {
+			if(example.getWords().size() >= 40)
+				sentences.add(example.getWords());
+		}
+
+		FirstOrderFeatureHolder features = new FirstOrderFeatureHolder(words, labels, rules);
+		DiscriminativeCKYSampler sampler = new DiscriminativeCKYSampler(words, labels, rules, features);
+		for(boolean fast : new boolean[] {false, true}) {
+			sampler.setFastLogAdd(fast);
+			long time = 0;
+			double sum = 0;
+			for(List<Word> sentence : sentences) {
+				features.fillScoreArrays(sentence, parameters);
+				long start = System.nanoTime();
+				sampler.calculateProbabilities(sentence);
+				time += System.nanoTime() - start;
+				for(Integer topLabel : labels.getTopLevelLabelIds()) {
+					double score = sampler.insideLogProbabilitiesAfterUnaries.get(0, sentence.size(), topLabel);
+					if(score != Double.NEGATIVE_INFINITY)
+						sum += score;
+				}
+			}
+			System.out.println((fast ? "fast" : "exact") + ": " + sentences.size() + " sentences in " + time / 1000000 + " ms, sum of top scores " + sum);
+		}
+	}
+
+	public static void benchmarkMoveStrategies() throws Exception {
+		SaveObject savedModel = SaveObject.loadSaveObject("modelIteration1");
+
+		WordEnumeration words = savedModel.getWords();
+		LabelEnumeration labels = savedModel.getLabels();
+		RuleEnumeration rules = savedModel.getRules();
+		FeatureParameters parameters = savedModel.getParameters();
+
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 22, 23, words, labels, rules, false);
+		benchmarkMoveStrategies(words, labels, rules, parameters, examples.subList(0, 200), true);
+	}
+
+	/**
+	 * Compare F1, candidates scored per restart, and time for the ways of choosing greedy changes in RandomizedGreedyDecoder
+	 */
+	public static void benchmarkMoveStrategies(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, FeatureParameters parameters, List<SpannedWords> examples, boolean secondOrder) {
+		for(boolean prioritize : new boolean[] {false, true}) {
+			for(GreedyChange.MoveAcceptance acceptance : GreedyChange.MoveAcceptance.values()) {
+				RandomizedGreedyDecoder decoder = new RandomizedGreedyDecoder(words, labels, rules, 1);
+				decoder.setSecondOrder(secondOrder);
+				decoder.setMoveAcceptance(acceptance);
+				decoder.setPrioritizeUncertainSpans(prioritize);
+				decoder.setSeed(1);
+
+				int numberCorrect = 0;
+				int numberGold = 0;
+				int numberOutput = 0;
+				long candidates = 0;
+				long restarts = 0;
+				long start = System.nanoTime();
+				for(SpannedWords example : examples) {
+					List<Span> result = decoder.decode(example.getWords(), parameters);
+					candidates += decoder.getLastNumberCandidatesScored();
+					restarts += decoder.getLastNumberRestarts();
+
+					for(Span span : result) {
+						for(Span goldSpan : example.getSpans()) {
+							if(span.getStart() == goldSpan.getStart() && span.getEnd() == goldSpan.getEnd() && span.getRule().getLabel() == goldSpan.getRule().getLabel())
+								numberCorrect++;
+						}
+					}
+					numberGold += example.getSpans().size();
+					numberOutput += result.size();
+				}
+				long time = System.nanoTime() - start;
+				decoder.close();
+
+				double precision = numberCorrect / (double)numberOutput;
+				double recall = numberCorrect / (double)numberGold;
+				double f1 = 2*precision*recall/(precision+recall);
+				System.out.println(acceptance + (prioritize ? " by posterior" : " by length") + ": F1 " + f1 + ", candidates per restart " + candidates / (double)Math.max(restarts, 1) + ", " + time / 1000000 + " ms");
+			}
+		}
+	}
+
 	public static void testPassiveAggressive() throws Exception {
 		WordEnumeration words = new WordEnumeration(true, 100);
 		LabelEnumeration labels = new LabelEnumeration();
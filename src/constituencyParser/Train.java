@@ -7,6 +7,11 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import constituencyParser.features.FeatureParameters;
 import constituencyParser.features.Features;
@@ -14,8 +19,11 @@ import constituencyParser.features.Features;
 /**
  * Trains a parser using Adagrad
  */
-public class Train {
+public class Train implements AutoCloseable {
 	Decoder decoder;
+	Decoder[] decoders; // the examples in a batch are split between these
+	ExecutorService executorService; // null to decode on the calling thread
+	boolean ownsDecoders; // if true, close closes the decoders and shuts down executorService
 	WordEnumeration wordEnum;
 	LabelEnumeration labels;
 	RuleEnumeration rules;
@@ -24,12 +32,46 @@ public class Train {
 	TLongDoubleHashMap predictedFeatureCounts = new TLongDoubleHashMap();
 	TLongDoubleHashMap goldFeatureCounts = new TLongDoubleHashMap();
 	
+	/**
+	 * What decoding one example found, kept so the examples of a batch can be decoded in parallel and then added to the update in order
+	 */
+	private static class ExampleResult {
+		int loss;
+		double decoderScore;
+		List<Span> predicted;
+		List<Long> goldFeatures;
+		List<Long> predictedFeatures;
+		double goldScore;
+		double predictedScore;
+		int augmentingScore;
+	}
+	
 	public Train(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, Decoder decoder, FeatureParameters parameters) {
 		this.wordEnum = words;
 		this.labels = labels;
 		this.rules = rules;
 		this.decoder = decoder;
+		this.decoders = new Decoder[] {decoder};
+		this.parameters = parameters;
+	}
+	
+	/**
+	 * Decodes the examples of each batch in parallel, each thread with its own decoder from factory.  The updates are the same as decoding one example at a time.
+	 * Call close when done.
+	 * @param threads
+	 */
+	public Train(WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules, DecoderFactory factory, int threads, FeatureParameters parameters) {
+		this.wordEnum = words;
+		this.labels = labels;
+		this.rules = rules;
 		this.parameters = parameters;
+		decoders = new Decoder[threads];
+		for(int i = 0; i < threads; i++)
+			decoders[i] = factory.makeDecoder();
+		decoder = decoders[0];
+		if(threads > 1)
+			executorService = DecoderExecutors.newFixedThreadPool(threads);
+		ownsDecoders = true;
 	}
 	
 	public void train(List<SpannedWords> trainingExamples, double dropout, boolean doSecondOrder, boolean costAugmenting, int batchSize, boolean mira) {
@@ -46,84 +88,48 @@ public class Train {
 			double batchPredictedScore = 0;
 			double batchGoldScore = 0;
 			
-			for(int b = 0; b < batchSize && index < trainingExamples.size(); b++, index++) {
+			int batchEnd = Math.min(index + batchSize, trainingExamples.size());
+			ExampleResult[] results = decodeBatch(trainingExamples.subList(index, batchEnd), doSecondOrder, costAugmenting);
+			
+			for(int b = 0; index < batchEnd; b++, index++) {
 				if ((index + 1) % 10 == 0)
 					System.out.print((index + 1) + "  ");
 				
 				SpannedWords sw = trainingExamples.get(index);
-				//if(count % 5 == 0) {
-					//System.out.println(count + " of " + trainingExamples.size() + "; Average loss: " + (totalLoss / (double) count));
-				//}
+				ExampleResult result = results[b];
 				
-				List<Word> words = sw.getWords();
-				
-				decoder.setCostAugmenting(costAugmenting, sw);
-				decoder.setSecondOrder(doSecondOrder);
-				List<Span> predicted;
-				 
-				if(parameters.getStoredFeatures().size() == 0) {
-					predicted = new ArrayList<>(); // don't run decoder if no features, since it won't be doing anything useful anyway, and runs a lot slower
-				}
-				else {
-					predicted = decoder.decode(words, parameters);
-				}
-			
-				int loss = computeLoss(predicted, sw.getSpans()); 
-				totalLoss += loss;
+				totalLoss += result.loss;
 				
-				if(loss > 0) {
-					List<Span> gold = sw.getSpans();
-					
+				if(result.loss > 0) {
 					// positive
-					List<Long> goldFeatures = Features.getAllFeatures(gold, words, doSecondOrder, wordEnum, labels, rules);
-					double goldScore = 0;
-					for(Long code : goldFeatures) {
+					for(Long code : result.goldFeatures) {
 						features.adjustOrPutValue(code, -1.0, -1.0);
-						goldScore += parameters.getScore(code);
 						goldFeatureCounts.adjustOrPutValue(code, 1.0, 1.0);
 					}
 					
-					batchGoldScore += goldScore;
-					batchPredictedScore += decoder.getLastScore();
+					batchGoldScore += result.goldScore;
+					batchPredictedScore += result.decoderScore;
 					
 					// negative
-					List<Long> predictedFeatures = Features.getAllFeatures(predicted, words, doSecondOrder, wordEnum, labels, rules);
-					double predictedScore = 0;
-					for(Long code : predictedFeatures) {
+					for(Long code : result.predictedFeatures) {
 						features.adjustOrPutValue(code, 1.0, 1.0);
-						predictedScore += parameters.getScore(code);
 						predictedFeatureCounts.adjustOrPutValue(code, 1.0, 1.0);
 					}
 					
 					// used to double check scoring
-					int augmentingScore = 0;
-					if(costAugmenting) {
-						for(Span s : predicted) {
-							boolean inGold = false;
-							for(Span gs : gold) {
-								if(gs.getRule().getLabel() == s.getRule().getLabel() && gs.getStart() == s.getStart() && gs.getEnd() == s.getEnd() && gs.getRule().getType() == s.getRule().getType()) {
-									inGold = true;
-								}
-							}
-							if(!inGold) {
-								augmentingScore++;
-							}
-						}
-					}
-					
-					if(Math.abs(predictedScore + augmentingScore - decoder.getLastScore()) > 1e-4 && !Double.isInfinite(decoder.getLastScore())) {
-						SpanUtilities.printSpans(predicted, sw.getWords().size(), labels);
+					if(Math.abs(result.predictedScore + result.augmentingScore - result.decoderScore) > 1e-4 && !Double.isInfinite(result.decoderScore)) {
+						SpanUtilities.printSpans(result.predicted, sw.getWords().size(), labels);
 						SaveObject so = new SaveObject(wordEnum, labels, rules, parameters);
 						try {
 							so.save("modelBeforeCrash");
 						} catch (IOException e) {
 						}
-						throw new RuntimeException("" + index + " Decoder score and freshly calculated score don't match: " + (predictedScore + augmentingScore) + " " + decoder.getLastScore());
+						throw new RuntimeException("" + index + " Decoder score and freshly calculated score don't match: " + (result.predictedScore + result.augmentingScore) + " " + result.decoderScore);
 					}
 					
-					if(goldScore > predictedScore + augmentingScore) {
+					if(result.goldScore > result.predictedScore + result.augmentingScore) {
 						System.out.println("Warning: Gold score greater than predicted score, but decoder didn't find it");
-						System.out.println("Gold score: " + goldScore + " predicted: " + predictedScore + " " + augmentingScore);
+						System.out.println("Gold score: " + result.goldScore + " predicted: " + result.predictedScore + " " + result.augmentingScore);
 					}
 				}
 			}
@@ -136,11 +142,117 @@ public class Train {
 		}
 		//checkParameterSanity();
 		
-		decoder.setCostAugmenting(false, null);
+		for(Decoder d : decoders)
+			d.setCostAugmenting(false, null);
 		parameters.resetDropout(0);
 		System.out.println("Finished; Average loss: " + (totalLoss / (double)trainingExamples.size()));
 	}
 	
+	/**
+	 * Decode the examples of one batch, in parallel if there is more than one decoder.  The parameters don't change during a batch.
+	 */
+	private ExampleResult[] decodeBatch(final List<SpannedWords> batch, final boolean doSecondOrder, final boolean costAugmenting) {
+		final ExampleResult[] results = new ExampleResult[batch.size()];
+		// don't run decoder if no features, since it won't be doing anything useful anyway, and runs a lot slower
+		final boolean decode = parameters.getStoredFeatures().size() != 0;
+		
+		if(executorService == null || batch.size() == 1) {
+			for(int i = 0; i < batch.size(); i++)
+				results[i] = decodeExample(decoder, batch.get(i), doSecondOrder, costAugmenting, decode);
+			return results;
+		}
+		
+		final AtomicInteger next = new AtomicInteger(0);
+		List<Future<Void>> futures = new ArrayList<>();
+		for(final Decoder workerDecoder : decoders) {
+			futures.add(executorService.submit(new Callable<Void>() {
+				@Override
+				public Void call() {
+					int i;
+					while((i = next.getAndIncrement()) < batch.size())
+						results[i] = decodeExample(workerDecoder, batch.get(i), doSecondOrder, costAugmenting, decode);
+					return null;
+				}
+			}));
+		}
+		
+		for(Future<Void> future : futures) {
+			try {
+				future.get();
+			}
+			catch(ExecutionException e) {
+				throw new RuntimeException("Exception in training worker thread", e.getCause());
+			}
+			catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		return results;
+	}
+	
+	/**
+	 * Decode one example and find the features for the update if the prediction is wrong
+	 */
+	private ExampleResult decodeExample(Decoder decoder, SpannedWords sw, boolean doSecondOrder, boolean costAugmenting, boolean decode) {
+		ExampleResult result = new ExampleResult();
+		List<Word> words = sw.getWords();
+		
+		decoder.setCostAugmenting(costAugmenting, sw);
+		decoder.setSecondOrder(doSecondOrder);
+		List<Span> predicted;
+		
+		if(!decode) {
+			predicted = new ArrayList<>();
+		}
+		else {
+			predicted = decoder.decode(words, parameters);
+		}
+		result.predicted = predicted;
+		result.decoderScore = decoder.getLastScore();
+		
+		result.loss = computeLoss(predicted, sw.getSpans());
+		if(result.loss == 0)
+			return result;
+		
+		List<Span> gold = sw.getSpans();
+		
+		result.goldFeatures = Features.getAllFeatures(gold, words, doSecondOrder, wordEnum, labels, rules);
+		for(Long code : result.goldFeatures)
+			result.goldScore += parameters.getScore(code);
+		
+		result.predictedFeatures = Features.getAllFeatures(predicted, words, doSecondOrder, wordEnum, labels, rules);
+		for(Long code : result.predictedFeatures)
+			result.predictedScore += parameters.getScore(code);
+		
+		if(costAugmenting) {
+			for(Span s : predicted) {
+				boolean inGold = false;
+				for(Span gs : gold) {
+					if(gs.getRule().getLabel() == s.getRule().getLabel() && gs.getStart() == s.getStart() && gs.getEnd() == s.getEnd() && gs.getRule().getType() == s.getRule().getType()) {
+						inGold = true;
+					}
+				}
+				if(!inGold) {
+					result.augmentingScore++;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Closes the decoders and stops the threads if they were made by this
+	 */
+	@Override
+	public void close() {
+		if(!ownsDecoders)
+			return;
+		if(executorService != null)
+			executorService.shutdown();
+		for(Decoder d : decoders)
+			d.close();
+	}
+	
 	@SuppressWarnings("unused")
 	private void checkParameterSanity() {
 		try {
@@ -0,0 +1,90 @@
+package constituencyParser;
+
+import java.util.Arrays;
+
+/**
+ * A chart with a value for each start, end, and label where start < end, stored in one flat array.
+ * Cells are laid out by start then end, with the labels of a cell next to each other.
+ * Values can be stored as floats to halve memory, and the array is kept between sentences so it is only reallocated when a longer sentence comes along.
+ */
+public class TriangularChart {
+	private final boolean useFloat;
+	private double[] doubleValues;
+	private float[] floatValues;
+	private int numWords;
+	private int numLabels;
+	
+	public TriangularChart(boolean useFloat) {
+		this.useFloat = useFloat;
+	}
+	
+	/**
+	 * Number of cells (start, end pairs) for a sentence of numWords words
+	 */
+	public static int numberOfCells(int numWords) {
+		return numWords * (numWords + 1) / 2;
+	}
+	
+	/**
+	 * Index of the cell for start, end, among all the cells of a sentence of numWords words
+	 */
+	public static int cellIndex(int numWords, int start, int end) {
+		return start * numWords - start * (start - 1) / 2 + end - start - 1;
+	}
+	
+	/**
+	 * Set the size for a new sentence and set every value to fill
+	 */
+	public void reset(int numWords, int numLabels, double fill) {
+		this.numWords = numWords;
+		this.numLabels = numLabels;
+		int size = numberOfCells(numWords) * numLabels;
+		if(useFloat) {
+			if(floatValues == null || floatValues.length < size)
+				floatValues = new float[size];
+			Arrays.fill(floatValues, 0, size, (float)fill);
+		}
+		else {
+			if(doubleValues == null || doubleValues.length < size)
+				doubleValues = new double[size];
+			Arrays.fill(doubleValues, 0, size, fill);
+		}
+	}
+	
+	/**
+	 * Index of the first label of the cell for start, end; the other labels follow it
+	 */
+	public int offset(int start, int end) {
+		return cellIndex(numWords, start, end) * numLabels;
+	}
+	
+	public double get(int start, int end, int label) {
+		return get(offset(start, end) + label);
+	}
+	
+	public void set(int start, int end, int label, double value) {
+		set(offset(start, end) + label, value);
+	}
+	
+	public double get(int index) {
+		if(useFloat)
+			return floatValues[index];
+		return doubleValues[index];
+	}
+	
+	public void set(int index, double value) {
+		if(useFloat)
+			floatValues[index] = (float)value;
+		else
+			doubleValues[index] = value;
+	}
+	
+	/**
+	 * Approximate memory used by the values, in bytes
+	 */
+	public long memoryUsed() {
+		if(useFloat)
+			return floatValues == null ? 0 : 4L * floatValues.length;
+		return doubleValues == null ? 0 : 8L * doubleValues.length;
+	}
+}
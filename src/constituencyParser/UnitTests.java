@@ -3,14 +3,20 @@ import static org.junit.Assert.*;
 import gnu.trove.map.hash.TLongDoubleHashMap;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
 
 import org.junit.Test;
 
+import constituencyParser.ConstituencyTree.Node;
+import constituencyParser.GreedyChange.CandidateCursor;
+import constituencyParser.GreedyChange.CandidateScorer;
 import constituencyParser.GreedyChange.ParentedSpans;
 import constituencyParser.Rule.Type;
 import constituencyParser.features.FeatureParameters;
@@ -203,6 +209,62 @@ public class UnitTests {
 		assertTrue(dropoutSumNegative > sumNegative);
 	}
 	
+	@Test
+	public void testPruning() {
+		int numWords = 5;
+		int numLabels = 130; // three longs per cell, the last one partly used
+		Pruning pruning = new Pruning(numWords, numLabels);
+		boolean[][][] pruned = new boolean[numWords][numWords + 1][numLabels];
+		Random random = new Random(0);
+		for(int start = 0; start < numWords; start++) {
+			for(int end = start + 1; end <= numWords; end++) {
+				for(int label = 0; label < numLabels; label++) {
+					if(random.nextInt(3) == 0) {
+						pruning.prune(start, end, label);
+						pruned[start][end][label] = true;
+					}
+				}
+			}
+		}
+		// labels next to the boundaries between longs, and the whole last cell
+		for(int label : new int[] {62, 63, 64, 65, 127, 128}) {
+			pruning.prune(0, 1, label);
+			pruned[0][1][label] = true;
+		}
+		for(int label = 0; label < numLabels; label++) {
+			pruning.prune(numWords - 1, numWords, label);
+			pruned[numWords - 1][numWords][label] = true;
+		}
+
+		int totalPruned = 0;
+		for(int start = 0; start < numWords; start++) {
+			for(int end = start + 1; end <= numWords; end++) {
+				int allowed = 0;
+				for(int label = 0; label < numLabels; label++) {
+					assertEquals(pruned[start][end][label], pruning.isPruned(start, end, label));
+					if(pruned[start][end][label])
+						totalPruned++;
+					else
+						allowed++;
+				}
+				assertEquals(allowed, pruning.countAllowed(start, end));
+
+				for(int from = 0; from <= numLabels; from++) {
+					int expected = -1;
+					for(int label = from; label < numLabels; label++) {
+						if(!pruned[start][end][label]) {
+							expected = label;
+							break;
+						}
+					}
+					assertEquals(expected, pruning.nextAllowedLabel(start, end, from));
+				}
+			}
+		}
+		assertEquals(totalPruned, pruning.countPruned());
+		assertEquals(0, pruning.countAllowed(numWords - 1, numWords));
+	}
+
 	@Test
 	public void testGreedyChange() throws IOException {
 		// load section 2 from file
@@ -270,7 +332,355 @@ public class UnitTests {
 			}
 		}
 	}
-	
+
+	@Test
+	public void testTreeChanges() throws IOException {
+		// assumes data is in "../WSJ data"
+		WordEnumeration words = new WordEnumeration(true, 100);
+		LabelEnumeration labels = new LabelEnumeration();
+		RuleEnumeration rules = new RuleEnumeration();
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 2, 3, words, labels, rules, true);
+		examples = examples.subList(0, Math.min(100, examples.size()));
+
+		Random random = new Random(0);
+		FeatureParameters params = randomParameters(examples, random, words, labels, rules);
+
+		GreedyChange gc = new GreedyChange(labels, rules);
+		RandomizedGreedyDecoder decoder = new RandomizedGreedyDecoder(words, labels, rules, 1);
+		decoder.setSecondOrder(false);
+		for(SpannedWords ex : examples) {
+			List<Word> w = ex.getWords();
+			Pruning noPrune = new Pruning(w.size(), labels.getNumberOfLabels());
+			ConstituencyTree tree = new ConstituencyTree(ex.getSpans(), SpanUtilities.getParents(ex.getSpans()), rules);
+			CandidateScorer scorer = decoder.makeTreeScorer(w, params, tree);
+			assertEquals(decoder.score(w, tree, params), scorer.getScore(tree), 1e-6);
+
+			for(int step = 0; step < 20; step++) {
+				ParentedSpans before = tree.getSpans();
+				List<Node> nodes = tree.getNodes();
+				Node node = nodes.get(random.nextInt(nodes.size()));
+				CandidateCursor cursor;
+				if(node.parent != null && random.nextBoolean())
+					cursor = gc.greedyChanges(tree, node.start, node.end, noPrune);
+				else
+					cursor = gc.greedyLabelChanges(tree, node.start, node.end, node.parent == null, noPrune);
+				if(cursor.size() == 0)
+					continue;
+
+				ParentedSpans candidate = null;
+				int choice = random.nextInt(cursor.size());
+				for(int i = 0; i <= choice; i++)
+					candidate = cursor.next();
+				checkSpans(tree, candidate);
+				assertEquals(decoder.score(w, tree, params), scorer.score(tree), 1e-6);
+
+				// a nested change that is taken back
+				int mark = tree.mark();
+				nodes = tree.getNodes();
+				tree.setLabels(nodes.get(random.nextInt(nodes.size())), -1, random.nextInt(labels.getNumberOfLabels()));
+				checkSpans(tree, tree.getSpans());
+				tree.undo(mark);
+				checkSpans(tree, candidate);
+				assertEquals(decoder.score(w, tree, params), scorer.score(tree), 1e-6);
+
+				if(random.nextBoolean()) {
+					cursor.close();
+					assertEquals(before.spans, tree.getSpans().spans);
+				}
+				else {
+					scorer.changeMade(tree);
+					tree.commit();
+				}
+				ParentedSpans after = tree.getSpans();
+				checkSpans(tree, after);
+				SpanUtilities.checkCorrectness(after.spans, after.parents);
+				assertEquals(decoder.score(w, tree, params), scorer.getScore(tree), 1e-6);
+			}
+		}
+		decoder.close();
+	}
+
+	@Test
+	public void testKBest() throws IOException {
+		// assumes data is in "../WSJ data"
+		WordEnumeration words = new WordEnumeration(true, 100);
+		LabelEnumeration labels = new LabelEnumeration();
+		RuleEnumeration rules = new RuleEnumeration();
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 2, 3, words, labels, rules, true);
+		examples = examples.subList(0, Math.min(50, examples.size()));
+		FeatureParameters params = randomParameters(examples, new Random(0), words, labels, rules);
+
+		DiscriminativeCKYDecoder decoder = new DiscriminativeCKYDecoder(words, labels, rules);
+		for(SpannedWords ex : examples) {
+			List<Span> viterbi = decoder.decode(ex.getWords(), params);
+			double viterbiScore = decoder.getLastScore();
+
+			List<List<Span>> best = decoder.decodeKBest(ex.getWords(), params, 1);
+			if(viterbi.size() == 0) {
+				assertEquals(0, best.size());
+				continue;
+			}
+			assertEquals(1, best.size());
+			assertEquals(new HashSet<Span>(viterbi), new HashSet<Span>(best.get(0)));
+			assertEquals(viterbiScore, decoder.getLastKBestScores().get(0), 1e-6);
+
+			List<List<Span>> kBest = decoder.decodeKBest(ex.getWords(), params, 20);
+			List<Double> scores = decoder.getLastKBestScores();
+			assertEquals(kBest.size(), scores.size());
+			assertEquals(new HashSet<Span>(viterbi), new HashSet<Span>(kBest.get(0)));
+			assertEquals(viterbiScore, scores.get(0), 1e-6);
+			HashSet<HashSet<Span>> trees = new HashSet<>();
+			for(int i = 0; i < kBest.size(); i++) {
+				if(i > 0)
+					assertTrue(scores.get(i) <= scores.get(i - 1));
+				SpanUtilities.checkCorrectness(kBest.get(i));
+				assertTrue(trees.add(new HashSet<Span>(kBest.get(i)))); // each tree only once
+			}
+		}
+		decoder.close();
+	}
+
+	@Test
+	public void testBatchDecoderSmallPool() throws IOException {
+		// assumes data is in "../WSJ data"
+		final WordEnumeration words = new WordEnumeration(true, 100);
+		final LabelEnumeration labels = new LabelEnumeration();
+		final RuleEnumeration rules = new RuleEnumeration();
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 2, 3, words, labels, rules, true);
+		examples = examples.subList(0, Math.min(20, examples.size()));
+		FeatureParameters params = randomParameters(examples, new Random(0), words, labels, rules);
+
+		// fewer threads than workers, and the decoders' restarts go on the same pool as the workers
+		final ExecutorService executor = DecoderExecutors.newFixedThreadPool(2);
+		BatchDecoder batchDecoder = new BatchDecoder(new DecoderFactory() {
+			@Override
+			public Decoder makeDecoder() {
+				RandomizedGreedyDecoder decoder = new RandomizedGreedyDecoder(words, labels, rules, executor, 3);
+				decoder.setNumberSampleIterations(5);
+				return decoder;
+			}
+		}, executor, 4);
+		batchDecoder.setHelpWhenIdle(true);
+
+		List<List<Word>> sentences = new ArrayList<>();
+		for(SpannedWords ex : examples)
+			sentences.add(ex.getWords());
+		List<BatchDecoder.Result> results = batchDecoder.decodeBatch(sentences, params);
+		assertEquals(sentences.size(), results.size());
+		for(int i = 0; i < results.size(); i++) {
+			List<Span> spans = results.get(i).getSpans();
+			assertTrue(spans.size() > 0);
+			SpanUtilities.checkCorrectness(spans);
+		}
+		batchDecoder.close();
+		executor.shutdown();
+	}
+
+	/**
+	 * Parameters with random weights on the features of the gold trees, so different trees have different scores
+	 */
+	private FeatureParameters randomParameters(List<SpannedWords> examples, Random random, WordEnumeration words, LabelEnumeration labels, RuleEnumeration rules) {
+		TLongDoubleHashMap featureUpdates = new TLongDoubleHashMap();
+		for(SpannedWords ex : examples) {
+			for(long feature : Features.getAllFeatures(ex.getSpans(), ex.getWords(), false, words, labels, rules))
+				featureUpdates.put(feature, random.nextDouble() - .5);
+		}
+		FeatureParameters params = new FeatureParameters(1, 0);
+		params.update(featureUpdates);
+		return params;
+	}
+
+	@Test
+	public void testTreeSpanIndex() throws IOException {
+		// assumes data is in "../WSJ data"
+		WordEnumeration words = new WordEnumeration(true, 100);
+		LabelEnumeration labels = new LabelEnumeration();
+		RuleEnumeration rules = new RuleEnumeration();
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 2, 3, words, labels, rules, true);
+
+		Random random = new Random(0);
+		for(SpannedWords ex : examples.subList(0, Math.min(100, examples.size()))) {
+			ConstituencyTree tree = new ConstituencyTree(ex.getSpans());
+			checkSpanIndex(tree, ex.getWords().size());
+			for(int step = 0; step < 20; step++) {
+				int mark = tree.mark();
+				int moves = 1 + random.nextInt(3);
+				for(int i = 0; i < moves; i++) {
+					List<Node> nodes = tree.getNodes();
+					Node node = nodes.get(random.nextInt(nodes.size()));
+					if(node.parent == null)
+						continue;
+					tree.detach(node);
+					List<Node> adjacent = tree.getAdjacent(node);
+					tree.attach(node, adjacent.get(random.nextInt(adjacent.size())));
+				}
+				if(random.nextInt(3) == 0)
+					tree.undo(mark);
+				else
+					tree.commit();
+				checkSpanIndex(tree, ex.getWords().size());
+			}
+		}
+	}
+
+	@Test
+	public void testGetParents() throws IOException {
+		// assumes data is in "../WSJ data"
+		WordEnumeration words = new WordEnumeration(true, 100);
+		LabelEnumeration labels = new LabelEnumeration();
+		RuleEnumeration rules = new RuleEnumeration();
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 2, 3, words, labels, rules, true);
+
+		Random random = new Random(0);
+		for(SpannedWords ex : examples) {
+			List<Span> spans = new ArrayList<>(ex.getSpans());
+			assertArrayEquals(quadraticGetParents(spans), SpanUtilities.getParents(spans));
+			Collections.shuffle(spans, random);
+			assertArrayEquals(quadraticGetParents(spans), SpanUtilities.getParents(spans));
+		}
+
+		// X -> X unary chains, which aren't in the loaded trees since stacked unaries are removed
+		int s = 0, np = 1, nn = 2, vb = 3;
+		List<Span> spans = Arrays.asList(new Span(0, 2, 1, new Rule(s, np, vb)), new Span(0, 1, new Rule(np, np)), new Span(0, 1, new Rule(np, nn)), new Span(0, nn), new Span(1, vb));
+		int[] parents = SpanUtilities.getParents(spans);
+		assertArrayEquals(new int[] {-1, 0, 1, 2, 0}, parents);
+		assertArrayEquals(quadraticGetParents(spans), parents);
+		SpanUtilities.checkCorrectness(spans, parents);
+
+		spans = Arrays.asList(new Span(0, 2, 1, new Rule(s, np, vb)), new Span(0, 1, new Rule(np, np)), new Span(0, 1, new Rule(np, np)), new Span(0, 1, new Rule(np, nn)), new Span(0, nn), new Span(1, vb));
+		assertArrayEquals(quadraticGetParents(spans), SpanUtilities.getParents(spans));
+		for(int i = 0; i < 10; i++) {
+			spans = new ArrayList<>(spans);
+			Collections.shuffle(spans, random);
+			assertArrayEquals(quadraticGetParents(spans), SpanUtilities.getParents(spans));
+		}
+	}
+
+	/**
+	 * The original SpanUtilities.getParents, which compares every pair of spans
+	 */
+	private int[] quadraticGetParents(List<Span> spans) {
+		int[] result = new int[spans.size()];
+		for(int i = 0; i < result.length; i++) {
+			Span s = spans.get(i);
+			result[i] = -1;
+			// connect to a unary if possible
+			for(int j = 0; j < result.length; j++) {
+				if(i == j)
+					continue;
+
+				Span p = spans.get(j);
+				if(p.getRule().getType() == Type.UNARY) {
+					if(p.getStart() == s.getStart() && p.getEnd() == s.getEnd() && p.getRule().getLeft() == s.getRule().getLabel())
+						result[i] = j;
+				}
+			}
+
+			if(result[i] != -1)
+				continue;
+			for(int j = 0; j < result.length; j++) {
+				if(i == j)
+					continue;
+
+				Span p = spans.get(j);
+				if(p.getRule().getType() == Type.BINARY) {
+					if((p.getStart() == s.getStart() && p.getSplit() == s.getEnd() && p.getRule().getLeft() == s.getRule().getLabel())
+							|| (p.getSplit() == s.getStart() && p.getEnd() == s.getEnd() && p.getRule().getRight() == s.getRule().getLabel())) {
+						result[i] = j;
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void testTreeHash() throws IOException {
+		// assumes data is in "../WSJ data"
+		WordEnumeration words = new WordEnumeration(true, 100);
+		LabelEnumeration labels = new LabelEnumeration();
+		RuleEnumeration rules = new RuleEnumeration();
+		List<SpannedWords> examples = PennTreebankReader.loadFromFiles("../WSJ data/", 2, 3, words, labels, rules, true);
+
+		Random random = new Random(0);
+		for(SpannedWords ex : examples.subList(0, Math.min(100, examples.size()))) {
+			ConstituencyTree tree = new ConstituencyTree(ex.getSpans());
+			assertEquals(SpanUtilities.treeHash(ex.getSpans()), tree.getHash());
+			for(int step = 0; step < 20; step++) {
+				int mark = tree.mark();
+				int moves = 1 + random.nextInt(3);
+				for(int i = 0; i < moves; i++) {
+					List<Node> nodes = tree.getNodes();
+					Node node = nodes.get(random.nextInt(nodes.size()));
+					if(node.parent != null && random.nextBoolean()) {
+						tree.detach(node);
+						List<Node> adjacent = tree.getAdjacent(node);
+						tree.attach(node, adjacent.get(random.nextInt(adjacent.size())));
+					}
+					else {
+						int unaryLabel = random.nextBoolean() ? -1 : random.nextInt(labels.getNumberOfLabels());
+						tree.setLabels(node, unaryLabel, random.nextInt(labels.getNumberOfLabels()));
+					}
+				}
+				if(random.nextInt(3) == 0)
+					tree.undo(mark);
+				else
+					tree.commit();
+				assertEquals(SpanUtilities.treeHash(tree.getSpans().spans), tree.getHash());
+			}
+		}
+	}
+
+	/**
+	 * Checks that getNode finds the same node as looking through the whole tree for every start and end
+	 */
+	private void checkSpanIndex(ConstituencyTree tree, int numberWords) {
+		List<Node> nodes = tree.getNodes();
+		for(int start = 0; start < numberWords; start++) {
+			for(int end = start + 1; end <= numberWords; end++) {
+				Node found = null;
+				for(Node node : nodes) {
+					if(node.start == start && node.end == end)
+						found = node;
+				}
+				assertSame(found, tree.getNode(start, end));
+				assertEquals(found != null, tree.hasSpan(start, end));
+			}
+		}
+	}
+
+	/**
+	 * Checks that spans and their parents are the same as the spans made from scratch for the nodes of tree
+	 */
+	private void checkSpans(ConstituencyTree tree, ParentedSpans spans) {
+		List<Span> expected = new ArrayList<>();
+		List<Integer> expectedParents = new ArrayList<>();
+		addSpans(tree.getRoot(), -1, expected, expectedParents);
+		assertEquals(expected, spans.spans);
+		assertEquals(expectedParents.size(), spans.parents.length);
+		for(int i = 0; i < spans.parents.length; i++)
+			assertEquals((int)expectedParents.get(i), spans.parents[i]);
+	}
+
+	private void addSpans(Node node, int parent, List<Span> spans, List<Integer> parents) {
+		if(node.unaryLabel != -1) {
+			spans.add(new Span(node.start, node.end, new Rule(node.unaryLabel, node.label)));
+			parents.add(parent);
+			parent = spans.size() - 1;
+		}
+		if(node.terminal) {
+			spans.add(new Span(node.start, node.label));
+			parents.add(parent);
+		}
+		else {
+			spans.add(new Span(node.start, node.end, node.left.end, new Rule(node.label, node.left.getOuterLabel(), node.right.getOuterLabel())));
+			parents.add(parent);
+			int index = spans.size() - 1;
+			addSpans(node.left, index, spans, parents);
+			addSpans(node.right, index, spans, parents);
+		}
+	}
+
 	/**
 	 * Checks if one of the options has structure described by spans
 	 * @param options